@@ -0,0 +1,89 @@
+package com.networkmesh.messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Fan-out of one chat message to every member of a room, through NodeHost.publish as the server does it.
+ * The members are in-memory sinks; after each publish their outboxes are polled empty, standing in
+ * for the writers, so every operation covers sequencing, history, encoding, enqueueing, dequeueing
+ * and the server's metrics.
+ * The score is messages per second; multiply by the sink count for deliveries per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class BroadcastBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    int sinks;                                                     // Members of the room.
+
+    @Param({"line", "frame"})
+    String protocol;                                               // Protocol every member speaks.
+
+    @Param({"64"})
+    int messageLength;                                             // Bytes of chat text per message.
+
+    private NodeHost host;                                         // Server the room belongs to.
+    private Room room;                                             // Room the message is published in.
+    private Outbox[] outboxes;                                     // Outboxes of the members.
+    private byte[] prefix;                                         // Sender's "[user] " prefix.
+    private byte[] message;                                        // Chat text.
+
+    /**
+     * Builds the room and its members.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        host = Sinks.host();
+        room = new Room("bench", host.config());
+        outboxes = new Outbox[sinks];
+        for (int i = 0; i < sinks; i++) {
+            NodeHandler sink = Sinks.sink(host, i + 1, protocol.equals("frame"));
+            room.add(sink);
+            outboxes[i] = Sinks.outbox(sink);
+        }
+        prefix = "[sender] ".getBytes(StandardCharsets.UTF_8);
+        message = "x".repeat(messageLength).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stops the server's timer thread.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        host.ServerShutdown();
+    }
+
+    /**
+     * Publishes one message to the room and drains it from every member.
+     */
+    @Benchmark
+    public void publish(Blackhole blackhole) {
+        host.publish(room, Envelope.chat(0, prefix, message), null);
+        for (Outbox outbox : outboxes) {
+            ByteBuffer delivered = outbox.poll();
+            blackhole.consume(delivered);
+            outbox.flushed();
+        }
+    }
+}
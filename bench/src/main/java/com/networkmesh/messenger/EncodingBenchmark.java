@@ -0,0 +1,91 @@
+package com.networkmesh.messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of turning one received chat line into what is written to its recipients.
+ * The string variant is how the server used to do it: decode the line, build "[user] message" as a
+ * String and encode it again for every recipient. The envelope variants glue the sender's prefix to
+ * the received bytes and encode once, sharing the buffer with every recipient.
+ * Run with -prof gc to compare the bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class EncodingBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int messageLength;                                             // Bytes of chat text per message.
+
+    @Param({"1", "100"})
+    int recipients;                                                // Clients the message is written to.
+
+    private String username;                                       // Sender's username.
+    private byte[] prefix;                                         // Sender's "[user] " prefix, as a NodeHandler keeps it.
+    private byte[] received;                                       // The line as read from the sender, in UTF-8.
+
+    /**
+     * Builds the message, with some non-ASCII text so that the UTF-8 paths are exercised.
+     */
+    @Setup
+    public void setUp() {
+        username = "sender";
+        prefix = ("[" + username + "] ").getBytes(StandardCharsets.UTF_8);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < messageLength) text.append("héllo wörld ");
+        received = text.substring(0, messageLength).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the line once, then renders and encodes it as a String for every recipient.
+     */
+    @Benchmark
+    public void stringPerRecipient(Blackhole blackhole) {
+        String message = new String(received, StandardCharsets.UTF_8);
+        for (int i = 0; i < recipients; i++) {
+            blackhole.consume(("[" + username + "] " + message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Builds an envelope from the received bytes and shares its line encoding with every recipient.
+     */
+    @Benchmark
+    public void envelopeLine(Blackhole blackhole) {
+        Envelope envelope = Envelope.chat(1, prefix, received);
+        for (int i = 0; i < recipients; i++) {
+            ByteBuffer encoded = envelope.encoded(false);
+            blackhole.consume(encoded);
+        }
+    }
+
+    /**
+     * Builds an envelope from the received bytes and shares its frame encoding with every recipient.
+     */
+    @Benchmark
+    public void envelopeFrame(Blackhole blackhole) {
+        Envelope envelope = Envelope.chat(1, prefix, received);
+        for (int i = 0; i < recipients; i++) {
+            ByteBuffer encoded = envelope.encoded(true);
+            blackhole.consume(encoded);
+        }
+    }
+}
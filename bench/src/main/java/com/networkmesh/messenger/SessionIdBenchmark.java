@@ -0,0 +1,92 @@
+package com.networkmesh.messenger;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Session ID generation with several threads accepting clients at once.
+ * Compares a synchronized counter, the simplest thread-safe form of the counter the server started
+ * with, with the lock-free SessionIdAllocator and with the per-thread blocks the event loops allocate from.
+ * Four threads by default; use -t to change it.
+ * The allocator wraps after 2^23 IDs, which a timed iteration would get through in well under a second and
+ * then measure the wrapped path only. Each iteration therefore times a fixed batch of IDs per thread from a
+ * fresh allocator, small enough that 16 threads still stay on the first pass of the counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = SessionIdBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = SessionIdBenchmark.BATCH)
+@Fork(2)
+@Threads(4)
+public class SessionIdBenchmark {
+
+    static final int BATCH = 500_000;                              // IDs each thread takes per iteration.
+
+    private SessionIdAllocator allocator;                          // Shared by every thread, new for each iteration.
+    private int counter;                                           // Counter of the synchronized variant.
+
+    /**
+     * Starts every iteration with counters that have not wrapped.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        allocator = new SessionIdAllocator(1);
+        counter = 1000;
+    }
+
+    /**
+     * A block of IDs owned by one thread, like an event loop's.
+     */
+    @State(Scope.Thread)
+    public static class PerThread {
+
+        SessionIdAllocator.Block block;                            // This thread's block.
+
+        /**
+         * Creates the block from the iteration's allocator.
+         */
+        @Setup(Level.Iteration)
+        public void setUp(SessionIdBenchmark benchmark) {
+            block = benchmark.allocator.newBlock();
+        }
+    }
+
+    /**
+     * Hands out an ID from a counter guarded by the benchmark's monitor.
+     */
+    @Benchmark
+    public int synchronizedCounter() {
+        synchronized (this) {
+            return counter++;
+        }
+    }
+
+    /**
+     * Hands out an ID from the shared allocator.
+     */
+    @Benchmark
+    public int allocator() {
+        return allocator.next();
+    }
+
+    /**
+     * Hands out an ID from the thread's own block.
+     */
+    @Benchmark
+    public int block(PerThread thread) {
+        return thread.block.next();
+    }
+}
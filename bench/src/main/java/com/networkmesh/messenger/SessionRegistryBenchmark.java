@@ -0,0 +1,134 @@
+package com.networkmesh.messenger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Iterating over the connected clients while others join and leave.
+ * Each group runs three threads that walk every session, as a broadcast does, against one thread
+ * that keeps adding and removing a client. The "cow" group uses a CopyOnWriteArrayList, the collection
+ * the server used to keep its active nodes in; the "registry" group uses SessionRegistry.
+ * The larger session counts show how the copy-on-write list's churn cost grows with every client connected.
+ * JMH reports the iterating and churning threads separately.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class SessionRegistryBenchmark {
+
+    private static final AtomicInteger CHURN_IDS = new AtomicInteger(1 << 20); // Session IDs of the churning clients.
+
+    @Param({"100", "1000", "10000", "100000"})
+    int sessions;                                                  // Clients connected for the whole run.
+
+    private NodeHost host;                                         // Server the clients belong to.
+    private List<NodeHandler> activeNodes;                         // The old copy-on-write list.
+    private SessionRegistry registry;                              // The current registry.
+
+    /**
+     * Connects the same clients to both collections.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        host = Sinks.host();
+        activeNodes = new CopyOnWriteArrayList<>();
+        registry = new SessionRegistry();
+        for (int i = 0; i < sessions; i++) {
+            NodeHandler node = Sinks.sink(host, i + 1, false);
+            activeNodes.add(node);
+            registry.add(node);
+        }
+    }
+
+    /**
+     * Stops the server's timer thread.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        host.ServerShutdown();
+    }
+
+    /**
+     * The client a churning thread connects and disconnects.
+     */
+    @State(Scope.Thread)
+    public static class Churner {
+
+        NodeHandler node;                                          // A client with a session ID of its own.
+
+        /**
+         * Creates the client.
+         */
+        @Setup(Level.Trial)
+        public void setUp(SessionRegistryBenchmark benchmark) {
+            node = Sinks.sink(benchmark.host, CHURN_IDS.getAndIncrement(), false);
+        }
+    }
+
+    /**
+     * Walks every client in the copy-on-write list.
+     */
+    @Benchmark
+    @Group("cow")
+    @GroupThreads(3)
+    public int cowIterate() {
+        int count = 0;
+        for (NodeHandler node : activeNodes) count += node.getSessionID();
+        return count;
+    }
+
+    /**
+     * Adds a client to the copy-on-write list and removes it again.
+     */
+    @Benchmark
+    @Group("cow")
+    @GroupThreads(1)
+    public boolean cowChurn(Churner churner) {
+        activeNodes.add(churner.node);
+        return activeNodes.remove(churner.node);
+    }
+
+    /**
+     * Walks every client in the registry.
+     */
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(3)
+    public int registryIterate() {
+        int count = 0;
+        for (NodeHandler node : registry.sessions()) count += node.getSessionID();
+        return count;
+    }
+
+    /**
+     * Adds a client to the registry and removes it again.
+     */
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(1)
+    public boolean registryChurn(Churner churner) {
+        registry.add(churner.node);
+        return registry.remove(churner.node);
+    }
+}
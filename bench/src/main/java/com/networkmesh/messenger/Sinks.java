@@ -0,0 +1,36 @@
+package com.networkmesh.messenger;
+
+/**
+ * Sinks builds NodeHandlers that are not connected to anything, for benchmarks.
+ * A sink never starts a reader or writer, so messages delivered to it stay in its outbox until the
+ * benchmark polls them. What the handshake would set, the username and session ID, is given directly.
+ */
+final class Sinks {
+
+    private Sinks() {
+    }
+
+    /**
+     * Creates a sink as if a client had completed its handshake.
+     * @param host the server the sink belongs to.
+     * @param sessionID the session ID of the sink; the username is derived from it.
+     * @param framed true for a client speaking the binary frame protocol.
+     */
+    static NodeHandler sink(NodeHost host, int sessionID, boolean framed) {
+        return NodeHandler.detached(host, "sink" + sessionID, sessionID, framed);
+    }
+
+    /**
+     * Returns the outbox of a sink, so that a benchmark can consume what was delivered to it.
+     */
+    static Outbox outbox(NodeHandler node) {
+        return node.outbox();
+    }
+
+    /**
+     * Creates a server that is never launched: no sockets, no mesh links and no message log.
+     */
+    static NodeHost host() {
+        return new NodeHost(null, new NodeConfig());
+    }
+}
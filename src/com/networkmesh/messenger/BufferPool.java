@@ -0,0 +1,189 @@
+package com.networkmesh.messenger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPool lends direct ByteBuffers for socket I/O, so that a connection only holds a buffer while it
+ * has bytes to read or write; an idle connection holds none.
+ * Buffers come in a few size classes. Each class carves its buffers out of large direct slabs, which are
+ * allocated on demand and kept, up to a limit on the total slab memory. A returned buffer goes on a free list
+ * for its class. The free lists are striped like LatencyHistogram: each thread uses the stripe chosen by its
+ * ID, and only takes from the others when its own is empty, so threads rarely wait for each other.
+ * Requests larger than the largest class, or made once the limit is reached, get a heap buffer that is
+ * simply dropped when returned.
+ */
+final class BufferPool {
+
+    static final int[] SIZES = {1024, 4 * 1024, 16 * 1024, 64 * 1024}; // Capacities of the size classes.
+    private static final int SLAB_BYTES = 256 * 1024;              // Direct memory allocated at a time for a class.
+
+    private final long maxSlabBytes;                               // Limit on the direct memory held in slabs.
+    private final AtomicLong slabBytes = new AtomicLong();         // Direct memory held in slabs so far.
+    private final LongAdder lentBytes = new LongAdder();           // Capacity of the pooled buffers currently lent out.
+    private final LongAdder unpooled = new LongAdder();            // Requests answered with a heap buffer.
+    private final SizeClass[] classes;                             // One per entry of SIZES.
+    private final int stripeMask;                                  // Number of stripes per class minus one; a power of two.
+
+    /**
+     * Creates an empty pool striped for the number of processors.
+     * @param maxSlabBytes limit on the direct memory the pool allocates; 0 makes every buffer an unpooled heap buffer.
+     */
+    BufferPool(long maxSlabBytes) {
+        this.maxSlabBytes = maxSlabBytes;
+        int stripes = 1;
+        while (stripes < Math.min(Runtime.getRuntime().availableProcessors(), 64)) stripes <<= 1;
+        this.stripeMask = stripes - 1;
+        this.classes = new SizeClass[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) classes[i] = new SizeClass(SIZES[i], stripes);
+    }
+
+    /**
+     * Borrows a cleared buffer of at least the given capacity. Safe to call from any thread.
+     * The buffer must be returned with {@link #release(ByteBuffer)} once the I/O it was borrowed for is done,
+     * and must not be used after that.
+     * @param minCapacity the number of bytes needed.
+     */
+    ByteBuffer acquire(int minCapacity) {
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.size >= minCapacity) {
+                int home = stripe();
+                ByteBuffer buffer = sizeClass.take(home);
+                if (buffer == null) buffer = sizeClass.carve(home);
+                if (buffer != null) {
+                    lentBytes.add(sizeClass.size);
+                    return buffer;
+                }
+                break;
+            }
+        }
+        unpooled.increment();
+        return ByteBuffer.allocate(minCapacity);
+    }
+
+    /**
+     * Returns a buffer borrowed from this pool. Heap buffers, which were never pooled, are dropped. Safe to call from any thread.
+     * @param buffer the buffer, or null for nothing.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.size == buffer.capacity()) {
+                lentBytes.add(-sizeClass.size);
+                sizeClass.put(stripe(), buffer.clear());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the direct memory held in slabs.
+     */
+    long slabBytes() {
+        return slabBytes.get();
+    }
+
+    /**
+     * Returns the capacity of the pooled buffers currently lent out.
+     */
+    long lentBytes() {
+        return lentBytes.sum();
+    }
+
+    /**
+     * Returns the number of requests answered with an unpooled heap buffer.
+     */
+    long unpooledBuffers() {
+        return unpooled.sum();
+    }
+
+    /**
+     * Returns the stripe of the calling thread.
+     */
+    private int stripe() {
+        return (int) Thread.currentThread().threadId() & stripeMask;
+    }
+
+    /**
+     * The buffers of one size: a free list per stripe, each a stack guarded by its own lock.
+     */
+    private final class SizeClass {
+
+        final int size;                                            // Capacity of every buffer of the class.
+        private final Stripe[] stripes;                            // Free lists.
+
+        /**
+         * Creates a class with empty free lists.
+         */
+        SizeClass(int size, int stripeCount) {
+            this.size = size;
+            this.stripes = new Stripe[stripeCount];
+            for (int i = 0; i < stripeCount; i++) stripes[i] = new Stripe();
+        }
+
+        /**
+         * Takes a free buffer, from the caller's stripe if it has one, otherwise from any other.
+         * @return the buffer, or null if every free list is empty.
+         */
+        ByteBuffer take(int home) {
+            for (int i = 0; i < stripes.length; i++) {
+                ByteBuffer buffer = stripes[(home + i) & stripeMask].pop();
+                if (buffer != null) return buffer;
+            }
+            return null;
+        }
+
+        /**
+         * Puts a free buffer on the caller's stripe.
+         */
+        void put(int home, ByteBuffer buffer) {
+            stripes[home].push(buffer);
+        }
+
+        /**
+         * Allocates a new slab, if the limit allows, and cuts it into buffers of this class: one is returned,
+         * the others go on the caller's stripe.
+         * @return a buffer, or null if the limit is reached.
+         */
+        ByteBuffer carve(int home) {
+            int slab = Math.max(size, SLAB_BYTES);
+            long held;
+            do {
+                held = slabBytes.get();
+                if (held + slab > maxSlabBytes) return null;
+            } while (!slabBytes.compareAndSet(held, held + slab));
+            ByteBuffer memory = ByteBuffer.allocateDirect(slab);
+            for (int at = size; at + size <= slab; at += size) put(home, memory.slice(at, size));
+            return memory.slice(0, size);
+        }
+    }
+
+    /**
+     * One free list: a growable stack of buffers.
+     */
+    private static final class Stripe {
+
+        private ByteBuffer[] buffers = new ByteBuffer[16];         // Free buffers, the top of the stack last.
+        private int count;                                         // Number of free buffers.
+
+        /**
+         * Removes the most recently returned buffer, or returns null if there is none.
+         */
+        synchronized ByteBuffer pop() {
+            if (count == 0) return null;
+            ByteBuffer buffer = buffers[--count];
+            buffers[count] = null;
+            return buffer;
+        }
+
+        /**
+         * Adds a free buffer.
+         */
+        synchronized void push(ByteBuffer buffer) {
+            if (count == buffers.length) buffers = Arrays.copyOf(buffers, count * 2);
+            buffers[count++] = buffer;
+        }
+    }
+}
@@ -1,19 +1,36 @@
 package com.networkmesh.messenger;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 /**
  * ClientNode represents the client that connects to the server.
  * The client can send messages and listen for messages from the server.
+ * It speaks the line protocol by default, or the binary frame protocol of FrameCodec when asked to.
+ * In the binary protocol the client keeps the highest sequence number it received; if the connection
+ * drops, it reconnects and resumes its session, and the server sends it the messages it missed.
  */
 public class ClientNode {
 
-    private Socket socket;              // Socket for connecting to the server.
-    private BufferedReader input;       // Read messages from the server.
+    private static final int RECONNECT_ATTEMPTS = 8;   // Tries before giving up on a dropped connection.
+    private static final int MAX_LINE_BYTES = 64 * 1024; // Longest line accepted from the server.
+
+    private volatile Socket socket;     // Socket for connecting to the server.
+    private InputStream input;          // Read messages from the server.
+    private LineDecoder lines;          // Splits the server's messages into lines, in line mode.
     private BufferedWriter output;      // Send messages to the server.
     private String username;            // Client's username.
+    private boolean framed;             // True if the client speaks the binary frame protocol.
+    private DataInputStream frameInput; // Read frames from the server, in frame mode.
+    private DataOutputStream frameOutput; // Send frames to the server, in frame mode.
+    private InetSocketAddress server;   // Address of the server, to reconnect to.
+    private volatile long token;        // Token that resumes the session, in frame mode; 0 until the server sends it.
+    private long lastSeq;               // Highest sequence number received, in frame mode. Used by the reader only.
+    private volatile boolean leaving;   // The user confirmed leaving, so a closed connection is not resumed.
 
     /**
     * Constructor that sets up the socket and I/O streams for communication.
@@ -21,10 +38,28 @@ public class ClientNode {
     * @param username client's username.
     */
     public ClientNode(Socket socket, String username) {
+        this(socket, username, false);
+    }
+
+    /**
+    * Constructor that sets up the socket and I/O streams for the chosen protocol.
+    * @param socket the connection to the server.
+    * @param username client's username.
+    * @param framed true to speak the binary frame protocol instead of lines of text.
+    */
+    public ClientNode(Socket socket, String username, boolean framed) {
         try {
             this.socket = socket;
-            this.output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.server = (InetSocketAddress) socket.getRemoteSocketAddress();
+            this.framed = framed;
+            if (framed) {
+                this.frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                this.frameInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            } else {
+                this.output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                this.input = socket.getInputStream();
+                this.lines = new LineDecoder(MAX_LINE_BYTES, null);
+            }
             this.username = username;
         } catch (IOException e) {
             closeAll();
@@ -38,9 +73,12 @@ public class ClientNode {
     */
     public void send() {
         try {
-            output.write(username);
-            output.newLine();
-            output.flush();
+            if (framed) {
+                frameOutput.write(FrameCodec.MAGIC);
+                writeFrame(FrameCodec.HELLO, username);
+            } else {
+                writeLine(username);
+            }
 
             Scanner scanner = new Scanner(System.in);
 
@@ -52,9 +90,12 @@ public class ClientNode {
                     try {
                         String confirmation = scanner.nextLine().trim().toLowerCase();
                         if (confirmation.equals("yes")) {
-                            output.write("/exit");
-                            output.newLine();
-                            output.flush();
+                            leaving = true;
+                            if (framed) {
+                                writeFrame(FrameCodec.BYE, "");
+                            } else {
+                                writeLine("/exit");
+                            }
                             break;
                         } else if (confirmation.equals("no")) {
                             System.out.println("Exit cancelled. You are still connected.");
@@ -70,9 +111,11 @@ public class ClientNode {
                 }
 
                 if (!msg.trim().isEmpty()) {
-                    output.write(msg);
-                    output.newLine();
-                    output.flush();
+                    if (framed) {
+                        sendFrame(msg);
+                    } else {
+                        writeLine(msg);
+                    }
                 }
             }
 
@@ -83,28 +126,113 @@ public class ClientNode {
     }
 
 
+    /**
+     * Sends one line of text to the server.
+     */
+    private void writeLine(String text) throws IOException {
+        output.write(text);
+        output.newLine();
+        output.flush();
+    }
+
+    /**
+     * Sends one frame to the server. The server fills in the sender, so it is left at 0.
+     */
+    private synchronized void writeFrame(byte type, String text) throws IOException {
+        FrameCodec.write(frameOutput, type, 0, text.getBytes(StandardCharsets.UTF_8));
+        frameOutput.flush();
+    }
+
+    /**
+     * Sends a chat frame. If the connection is down and the session can be resumed, the message is
+     * dropped with a warning while the reader reconnects, instead of ending the client.
+     */
+    private void sendFrame(String msg) throws IOException {
+        try {
+            writeFrame(FrameCodec.TEXT, msg);
+        } catch (IOException e) {
+            if (token == 0) throw e;
+            System.out.println("[Client] Connection lost, message not sent.");
+        }
+    }
+
+    /**
+     * Reads the next message from the server in either protocol. In frame mode, the session token is
+     * kept rather than shown, and the sequence number of every frame is noted.
+     * @return the message text, or null once the server closed the connection.
+     */
+    private String readMessage() throws IOException {
+        if (!framed) return lines.read(input);
+        while (true) {
+            FrameCodec.Frame frame = FrameCodec.read(frameInput);
+            if (frame == null) return null;
+            lastSeq = Math.max(lastSeq, frame.seq);
+            if (frame.type != FrameCodec.SESSION) return new String(frame.payload, StandardCharsets.UTF_8);
+            token = ByteBuffer.wrap(frame.payload).getLong();
+        }
+    }
+
+    /**
+     * Reconnects after the connection dropped and asks the server to resume the session, waiting
+     * longer after every failed attempt. Called by the reader, in frame mode.
+     * @return true once reconnected; false if the session cannot be resumed or the server stayed unreachable.
+     */
+    private boolean reconnect() {
+        if (!framed || token == 0 || leaving) return false;
+        System.out.println("[Client] Connection lost, reconnecting...");
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !leaving; attempt++) {
+            try {
+                Thread.sleep(Math.min(250L << attempt, 10_000));
+                Socket fresh = new Socket(server.getAddress(), server.getPort());
+                byte[] name = username.getBytes(StandardCharsets.UTF_8);
+                byte[] resume = ByteBuffer.allocate(16 + name.length).putLong(token).putLong(lastSeq).put(name).array();
+                synchronized (this) {
+                    socket.close();                    // Closes the old streams too, without flushing them.
+                    socket = fresh;
+                    frameOutput = new DataOutputStream(new BufferedOutputStream(fresh.getOutputStream()));
+                    frameInput = new DataInputStream(new BufferedInputStream(fresh.getInputStream()));
+                    frameOutput.write(FrameCodec.MAGIC);
+                    FrameCodec.write(frameOutput, FrameCodec.RESUME, 0, resume);
+                    frameOutput.flush();
+                }
+                return true;
+            } catch (IOException e) {
+                // The server is not reachable yet; try again.
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        System.out.println("[Client] Could not reconnect to the server.");
+        return false;
+    }
+
     /**
      * Starts a thread to continuously listen for incoming messages from the server.
-     * Prints them to the console as they arrive.
+     * Prints them to the console as they arrive, and reconnects if the connection drops in frame mode.
      */
     public void receive() {
         new Thread(() -> {
             String incoming;
             boolean firstMessage = true; // Track if it's the welcome message
-            try {
-                while ((incoming = input.readLine()) != null) {
-                    if (firstMessage) {
-                        System.out.println(incoming);
-                        System.out.println("Type your message and press Enter.");
-                        System.out.println("To exit the chat, type '/exit'.");
-                        firstMessage = false;
-                    } else {
-                        System.out.println(incoming);
+            do {
+                try {
+                    while ((incoming = readMessage()) != null) {
+                        if (firstMessage) {
+                            System.out.println(incoming);
+                            System.out.println("Type your message and press Enter.");
+                            System.out.println("Type '/msg <id|username> <message>' to send a private message.");
+                            System.out.println("Type '/join <room>' to switch rooms, '/leave' to go back to the lobby and '/rooms' to list rooms.");
+                            System.out.println("To exit the chat, type '/exit'.");
+                            firstMessage = false;
+                        } else {
+                            System.out.println(incoming);
+                        }
                     }
+                } catch (IOException e) {
+                    // The connection dropped; resume it if possible.
                 }
-            } catch (IOException e) {
-                closeAll();
-            }
+            } while (reconnect());
+            closeAll();
         }).start();
     }
     
@@ -116,6 +244,8 @@ public class ClientNode {
         try {
             if (input != null) input.close();
             if (output != null) output.close();
+            if (frameInput != null) frameInput.close();
+            if (frameOutput != null) frameOutput.close();
             if (socket != null) socket.close();
         } catch (IOException e) {
             e.printStackTrace();
@@ -125,13 +255,15 @@ public class ClientNode {
     /**
      * Main method to start the client.
      * Asks the user for a username, connects to the server, and starts communication.
+     * Pass "binary" to use the binary frame protocol.
      */
     public static void main(String[] args) throws IOException {
         Scanner scanner = new Scanner(System.in);
         System.out.print("\nEnter your username: ");
         String name = scanner.nextLine();
-        Socket socket = new Socket("localhost", 8080);
-        ClientNode client = new ClientNode(socket, name);
+        Socket socket = new Socket("localhost", Integer.getInteger("mesh.clientPort", 8080));
+        boolean framed = args.length > 0 && args[0].equalsIgnoreCase("binary");
+        ClientNode client = new ClientNode(socket, name, framed);
         client.receive();
         client.send();
     }
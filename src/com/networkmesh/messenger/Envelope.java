@@ -0,0 +1,83 @@
+package com.networkmesh.messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Envelope is one message on its way to many recipients.
+ * It holds the rendered message once and encodes it lazily, at most once per wire format:
+ * as a newline-terminated line for text clients and as a frame for binary clients.
+ * The encoded buffers are read-only and shared by every outbox the message is queued in.
+ */
+final class Envelope {
+
+    final byte type;                       // FrameCodec message type.
+    final int sender;                      // Session ID of the sender, 0 for the server.
+    final byte[] body;                     // Rendered message in UTF-8, without a line terminator.
+    final long createdAt;                  // System.nanoTime() when the message entered the server.
+    long seq;                              // Host sequence number, set once when published to a room.
+    String room;                           // Name of the room it was published in, set along with seq.
+    private volatile ByteBuffer line;      // Text encoding, built on first use.
+    private volatile ByteBuffer frame;     // Binary encoding, built on first use.
+
+    Envelope(byte type, int sender, byte[] body) {
+        this.type = type;
+        this.sender = sender;
+        this.body = body;
+        this.createdAt = System.nanoTime();
+    }
+
+    /**
+     * Creates a notice from the server.
+     */
+    static Envelope system(String text) {
+        return new Envelope(FrameCodec.SYSTEM, 0, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates a chat message by gluing the sender's "[user] " prefix to the message bytes,
+     * without decoding them.
+     * @param sender session ID of the sender.
+     * @param prefix the sender's encoded "[user] " prefix.
+     * @param message the message as sent by the client.
+     */
+    static Envelope chat(int sender, byte[] prefix, byte[] message) {
+        byte[] body = Arrays.copyOf(prefix, prefix.length + message.length);
+        System.arraycopy(message, 0, body, prefix.length, message.length);
+        return new Envelope(FrameCodec.TEXT, sender, body);
+    }
+
+    /**
+     * Returns the message encoded for a client.
+     * @param framed true for a client using the binary protocol.
+     */
+    ByteBuffer encoded(boolean framed) {
+        return framed ? frame() : line();
+    }
+
+    /**
+     * Returns the message as a newline-terminated line. Concurrent first calls may each build
+     * the buffer; they are identical, so whichever is published last is as good as any.
+     */
+    private ByteBuffer line() {
+        ByteBuffer encoded = line;
+        if (encoded == null) {
+            byte[] bytes = Arrays.copyOf(body, body.length + 1);
+            bytes[body.length] = '\n';
+            line = encoded = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the message as a frame, carrying the sequence number so that the client can resume from it.
+     */
+    private ByteBuffer frame() {
+        ByteBuffer encoded = frame;
+        if (encoded == null) {
+            frame = encoded = FrameCodec.encode(type, sender, seq, body);
+        }
+        return encoded;
+    }
+}
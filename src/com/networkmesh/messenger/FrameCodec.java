@@ -0,0 +1,173 @@
+package com.networkmesh.messenger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameCodec implements the optional binary protocol spoken between ClientNode and NodeHost.
+ * A client opts in by sending {@link #MAGIC} as its very first byte; a UTF-8 username can never
+ * start with that byte, so the server tells both protocols apart from the first byte alone.
+ *
+ * Every frame is a 4-byte big-endian length followed by that many bytes:
+ * a message-type byte, the sender's 4-byte session ID, an 8-byte sequence number and the payload.
+ * The sequence number is the one the server gave a room message when publishing it, 0 for anything else;
+ * a client that keeps the highest one it has seen can resume its session after a dropped connection.
+ * The server can route a frame by looking at the header only, without decoding the payload.
+ */
+public final class FrameCodec {
+
+    public static final byte MAGIC = (byte) 0xFF;                  // First byte sent by a client using frames.
+
+    public static final byte HELLO = 1;                            // Client to server: payload is the username.
+    public static final byte TEXT = 2;                             // Chat line; from the server, already prefixed with "[user] ".
+    public static final byte SYSTEM = 3;                           // Server notice such as the welcome message.
+    public static final byte BYE = 4;                              // Client leaves, or server confirms it.
+    public static final byte FORWARD = 5;                          // Host to host only: a room message relayed through the mesh.
+    public static final byte SUBSCRIBE = 6;                        // Host to room owner: send me this room's messages.
+    public static final byte UNSUBSCRIBE = 7;                      // Host to room owner: I no longer have members in this room.
+    public static final byte PRESENCE = 8;                         // Host to username owner: this user is here, sender is its session ID.
+    public static final byte ABSENCE = 9;                          // Host to username owner: this user left.
+    public static final byte DIRECT = 10;                          // Host to host: a private message or a notice for one session.
+    public static final byte RESUME = 11;                          // Client to server, instead of HELLO: token, last sequence number, username.
+    public static final byte SESSION = 12;                         // Server to client: the 8-byte token that resumes this session.
+
+    static final int HEADER_SIZE = 1 + 4 + 8;                      // Type, sender and sequence number, counted in the frame length.
+    static final int MAX_FRAME = 64 * 1024;                        // Largest accepted frame, header included.
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a frame into a read-only buffer that can be shared between outboxes.
+     * @param type the message type.
+     * @param sender session ID of the sender, or 0 for the server.
+     * @param payload the payload bytes.
+     */
+    public static ByteBuffer encode(byte type, int sender, byte[] payload) {
+        return encode(type, sender, 0, payload);
+    }
+
+    /**
+     * Encodes a sequenced frame into a read-only buffer that can be shared between outboxes.
+     * @param type the message type.
+     * @param sender session ID of the sender, or 0 for the server.
+     * @param seq sequence number of the message, or 0 if it has none.
+     * @param payload the payload bytes.
+     */
+    public static ByteBuffer encode(byte type, int sender, long seq, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_SIZE + payload.length);
+        frame.putInt(HEADER_SIZE + payload.length).put(type).putInt(sender).putLong(seq).put(payload).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes a frame without a sequence number to a stream. The caller flushes.
+     */
+    public static void write(DataOutputStream out, byte type, int sender, byte[] payload) throws IOException {
+        out.writeInt(HEADER_SIZE + payload.length);
+        out.writeByte(type);
+        out.writeInt(sender);
+        out.writeLong(0);
+        out.write(payload);
+    }
+
+    /**
+     * Reads one frame from a blocking stream.
+     * @return the frame, or null if the stream ended cleanly between two frames.
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int first = in.read();                                     // Read alone to tell a clean end from a cut frame.
+        if (first < 0) return null;
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedShort());
+        checkLength(length);
+        byte type = in.readByte();
+        int sender = in.readInt();
+        long seq = in.readLong();
+        byte[] payload = new byte[length - HEADER_SIZE];
+        in.readFully(payload);
+        return new Frame(type, sender, seq, payload);
+    }
+
+    /**
+     * Checks whether the first byte of a connection announces the binary protocol.
+     * A text connection's first byte is pushed back.
+     * @return true if the client sent {@link #MAGIC}.
+     */
+    static boolean negotiate(PushbackInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) throw new EOFException("Client left before the handshake");
+        if (first == (MAGIC & 0xFF)) return true;
+        in.unread(first);
+        return false;
+    }
+
+    /**
+     * Rejects frame lengths that are too short for a header or larger than {@link #MAX_FRAME}.
+     */
+    private static void checkLength(int length) throws ProtocolException {
+        if (length < HEADER_SIZE || length > MAX_FRAME) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * A decoded frame.
+     */
+    public static final class Frame {
+
+        public final byte type;                                    // Message type.
+        public final int sender;                                   // Session ID of the sender, 0 for the server.
+        public final long seq;                                     // Sequence number of a room message, otherwise 0.
+        public final byte[] payload;                               // Payload bytes.
+
+        /**
+         * Creates a frame from its decoded fields.
+         */
+        Frame(byte type, int sender, long seq, byte[] payload) {
+            this.type = type;
+            this.sender = sender;
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Incremental decoder for non-blocking connections: it is fed whatever bytes arrived
+     * and returns frames as soon as they are complete.
+     */
+    static final class Decoder {
+
+        private final ByteBuffer header = ByteBuffer.allocate(4 + HEADER_SIZE); // Length, type, sender and sequence number of the current frame.
+        private byte[] payload;                                    // Payload of the current frame, once the header is complete.
+        private int filled;                                        // Payload bytes received so far.
+
+        /**
+         * Consumes bytes from the buffer until a frame is complete or the buffer is empty.
+         * @return the next complete frame, or null if more bytes are needed.
+         */
+        Frame next(ByteBuffer in) throws ProtocolException {
+            if (payload == null) {
+                while (header.hasRemaining() && in.hasRemaining()) header.put(in.get());
+                if (header.hasRemaining()) return null;
+                int length = header.getInt(0);
+                checkLength(length);
+                payload = new byte[length - HEADER_SIZE];
+                filled = 0;
+            }
+            int n = Math.min(payload.length - filled, in.remaining());
+            in.get(payload, filled, n);
+            filled += n;
+            if (filled < payload.length) return null;
+
+            Frame frame = new Frame(header.get(4), header.getInt(5), header.getLong(9), payload);
+            header.clear();
+            payload = null;
+            return frame;
+        }
+    }
+}
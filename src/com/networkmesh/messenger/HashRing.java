@@ -0,0 +1,81 @@
+package com.networkmesh.messenger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * HashRing assigns keys such as room names and usernames to the hosts of the mesh by consistent hashing.
+ * Every host is placed on the ring at many pseudo-random points (virtual nodes); a key belongs to the
+ * host of the first point at or after the key's hash. When a host joins or leaves, only the keys
+ * next to its points change owner, about 1/n of them, and the virtual nodes keep the share of every
+ * host close to even. A ring is immutable: a new one is built when the set of hosts changes.
+ */
+public final class HashRing {
+
+    public static final int VIRTUAL_NODES = 128;                   // Points per host on the ring.
+
+    private final Set<Integer> nodes;                              // Node IDs of the hosts on the ring.
+    private final long[] points;                                   // Hashes of all points, sorted.
+    private final int[] owners;                                    // Node ID owning each point.
+
+    /**
+     * Builds a ring over the given hosts.
+     * @param nodeIds node IDs of the hosts.
+     */
+    public HashRing(Collection<Integer> nodeIds) {
+        this.nodes = new TreeSet<>(nodeIds);
+        long[][] placed = new long[nodes.size() * VIRTUAL_NODES][];
+        int i = 0;
+        for (int node : nodes) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                placed[i++] = new long[] {hash(node + "#" + v), node};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[placed.length];
+        this.owners = new int[placed.length];
+        for (i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = (int) placed[i][1];
+        }
+    }
+
+    /**
+     * Returns the node ID of the host that owns a key, or -1 if the ring is empty.
+     * @param key a room name or username.
+     */
+    public int owner(String key) {
+        if (points.length == 0) return -1;
+        int at = Arrays.binarySearch(points, hash(key));
+        if (at < 0) at = -at - 1;
+        return owners[at == points.length ? 0 : at];
+    }
+
+    /**
+     * Returns the node IDs of the hosts on the ring.
+     */
+    public Set<Integer> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Hashes a key to 64 bits: FNV-1a over its UTF-8 bytes, then the MurmurHash3 finalizer
+     * so that similar keys such as "3#1" and "3#2" land far apart.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,99 @@
+package com.networkmesh.messenger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * HistoryRing holds the most recent messages of a room so that clients joining it get some context.
+ * The server also keeps one ring of every message it published, from which resumed sessions get
+ * the messages they missed.
+ * The ring is preallocated. It has a single writer at a time: NodeHost.publish adds messages under its
+ * numbering lock, so they arrive in sequence order. A writer marks the slot busy, stores the message and
+ * publishes its position in the slot. Readers never lock: a reader takes a message only if the slot shows
+ * the expected position both before and after reading it, so it never sees a slot that is being overwritten;
+ * such a message is skipped instead.
+ */
+final class HistoryRing {
+
+    private static final long BUSY = -1;                           // Slot marker while a message is being stored.
+
+    private final int depth;                                       // Number of messages kept for replay.
+    private final int mask;                                        // Ring size minus one; the size is a power of two.
+    private final AtomicReferenceArray<Envelope> messages;         // Stored messages.
+    private final AtomicLongArray positions;                       // Position of the message in each slot, or BUSY.
+    private final AtomicLong next = new AtomicLong();              // Position of the next message; also the number ever added.
+
+    /**
+     * Creates an empty ring.
+     * @param depth number of recent messages to keep, at least 1.
+     */
+    HistoryRing(int depth) {
+        int size = Integer.highestOneBit(Math.max(1, depth - 1)) << 1;
+        this.depth = depth;
+        this.mask = size - 1;
+        this.messages = new AtomicReferenceArray<>(size);
+        this.positions = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) positions.set(i, BUSY);
+    }
+
+    /**
+     * Adds a message, overwriting the oldest one once the ring is full. Calls must not overlap, and messages
+     * must be added in sequence order for {@link #holdsAfter(long)} to be right.
+     */
+    void add(Envelope envelope) {
+        long position = next.getAndIncrement();
+        int slot = (int) (position & mask);
+        positions.set(slot, BUSY);
+        messages.set(slot, envelope);
+        positions.set(slot, position);
+    }
+
+    /**
+     * Returns the most recent messages, oldest first. Safe to call from any thread.
+     * @param maxSeq only messages with a sequence number up to this one are returned, so that messages
+     *               the caller receives live anyway are left out.
+     */
+    List<Envelope> recent(long maxSeq) {
+        return range(0, maxSeq, null);
+    }
+
+    /**
+     * Returns the stored messages of a sequence range, oldest first. Safe to call from any thread.
+     * @param afterSeq only messages with a higher sequence number are returned.
+     * @param maxSeq only messages with a sequence number up to this one are returned.
+     * @param room if not null, only messages published in the room of this name are returned.
+     */
+    List<Envelope> range(long afterSeq, long maxSeq, String room) {
+        long end = next.get();
+        List<Envelope> found = new ArrayList<>();
+        for (long position = Math.max(0, end - depth); position < end; position++) {
+            int slot = (int) (position & mask);
+            if (positions.get(slot) != position) continue;         // Not stored yet, or already overwritten.
+            Envelope envelope = messages.get(slot);
+            if (positions.get(slot) != position) continue;         // Overwritten while reading.
+            if (envelope.seq > afterSeq && envelope.seq <= maxSeq && (room == null || room.equals(envelope.room))) {
+                found.add(envelope);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Tells whether the ring still holds every message after a sequence number, assuming messages
+     * were added in sequence order with no number skipped. Safe to call from any thread.
+     * @param afterSeq the last sequence number the caller already has.
+     */
+    boolean holdsAfter(long afterSeq) {
+        long end = next.get();
+        if (end <= depth) return true;                             // Nothing was overwritten yet.
+        long oldest = end - depth;
+        int slot = (int) (oldest & mask);
+        if (positions.get(slot) != oldest) return false;           // Being overwritten right now.
+        Envelope envelope = messages.get(slot);
+        if (positions.get(slot) != oldest) return false;
+        return envelope.seq <= afterSeq + 1;
+    }
+}
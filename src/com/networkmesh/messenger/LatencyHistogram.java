@@ -0,0 +1,161 @@
+package com.networkmesh.messenger;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in buckets whose width grows with the value, like an HDR histogram:
+ * every power of two is split into {@link #SUB_BUCKETS} equal buckets, so any recorded value is known to
+ * within about 3% while the whole range from 1 ns to centuries fits in under 2000 counters.
+ * Recording is a single atomic increment and never allocates or locks. Threads are spread over
+ * several copies of the counters (stripes) so that they rarely increment the same one.
+ * Percentiles are read from a {@link Snapshot}, which adds the stripes up.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;                         // Precision: 2^SUB_BITS buckets per power of two.
+    static final int SUB_BUCKETS = 1 << SUB_BITS;                  // Buckets per power of two.
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;      // Buckets covering every positive long.
+
+    private final int stripeMask;                                  // Number of stripes minus one; a power of two.
+    private final AtomicLongArray counts;                          // Counters of every stripe, one stripe after the other.
+
+    /**
+     * Creates an empty histogram striped for the number of processors.
+     */
+    public LatencyHistogram() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an empty histogram.
+     * @param stripes number of copies of the counters, rounded up to a power of two (at most 64); 1 for a histogram used by one thread.
+     */
+    public LatencyHistogram(int stripes) {
+        int size = 1;
+        while (size < Math.min(stripes, 64)) size <<= 1;
+        this.stripeMask = size - 1;
+        this.counts = new AtomicLongArray(size * BUCKETS);
+    }
+
+    /**
+     * Records one duration. Safe to call from any thread.
+     * @param nanos the duration in nanoseconds; negative values count as 0.
+     */
+    public void record(long nanos) {
+        int stripe = (int) Thread.currentThread().threadId() & stripeMask;
+        counts.incrementAndGet(stripe * BUCKETS + bucket(Math.max(0, nanos)));
+    }
+
+    /**
+     * Adds up the stripes into a consistent-enough view: values recorded while the snapshot is
+     * taken may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] totals = new long[BUCKETS];
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            int base = stripe * BUCKETS;
+            for (int i = 0; i < BUCKETS; i++) totals[i] += counts.get(base + i);
+        }
+        return new Snapshot(totals);
+    }
+
+    /**
+     * Returns the bucket of a value: values below {@link #SUB_BUCKETS} have a bucket each; above that,
+     * the position of the highest bit picks the power of two and the next SUB_BITS bits the bucket within it.
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int highest = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highest - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Returns the smallest value that falls in a bucket.
+     */
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * Returns the largest value that falls in a bucket.
+     */
+    static long highestValue(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+    }
+
+    /**
+     * The counts of a histogram at one moment. Immutable.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;                               // Count of each bucket.
+        private final long total;                                  // Sum of the counts.
+
+        /**
+         * Creates a snapshot from bucket counts, which it takes ownership of.
+         */
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) sum += count;
+            this.total = sum;
+        }
+
+        /**
+         * Returns what was recorded between an earlier snapshot of the same histogram and this one.
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] delta = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) delta[i] = counts[i] - earlier.counts[i];
+            return new Snapshot(delta);
+        }
+
+        /**
+         * Returns the number of recorded values.
+         */
+        public long count() {
+            return total;
+        }
+
+        /**
+         * Returns a value that the given share of the recorded values do not exceed, to within
+         * the width of a bucket, or 0 if nothing was recorded.
+         * @param percentile between 0 and 100, e.g. 99.9.
+         */
+        public long percentile(double percentile) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highestValue(i);
+            }
+            return highestValue(BUCKETS - 1);
+        }
+
+        /**
+         * Returns the largest recorded value, to within the width of a bucket, or 0 if nothing was recorded.
+         */
+        public long max() {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                if (counts[i] != 0) return highestValue(i);
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the mean of the recorded values, taking the middle of each bucket, or 0 if nothing was recorded.
+         */
+        public double mean() {
+            if (total == 0) return 0;
+            double sum = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (counts[i] != 0) sum += counts[i] * (lowestValue(i) / 2.0 + highestValue(i) / 2.0);
+            }
+            return sum / total;
+        }
+    }
+}
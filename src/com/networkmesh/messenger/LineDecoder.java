@@ -0,0 +1,139 @@
+package com.networkmesh.messenger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * LineDecoder splits a byte stream into newline-terminated UTF-8 lines. A line that arrives whole is decoded
+ * straight from the buffer it was read into. Only the start of a line still waiting for its newline is kept,
+ * in a buffer borrowed from a BufferPool that grows through the size classes as the line does and goes back
+ * to the pool as soon as the line is complete, so an idle connection holds no line buffer at all.
+ * A line longer than the limit is refused as soon as the limit is passed, so a peer that never sends
+ * a newline costs at most one line's worth of memory instead of growing a line without bound.
+ * It can be fed the bytes that arrived on a non-blocking channel, or read from a blocking stream itself.
+ * A trailing '\r' is removed, like BufferedReader.readLine() does. Not thread-safe: one decoder per connection.
+ */
+final class LineDecoder {
+
+    private static final int STREAM_CHUNK = 512;                   // Bytes read from a blocking stream at a time; its only buffer.
+
+    private final int maxLineBytes;                                // Longest accepted line, without its newline.
+    private final BufferPool pool;                                 // Lends the partial-line buffer, or null to allocate it.
+    private ByteBuffer partial;                                    // Start of a line whose newline has not arrived, or null.
+    private ByteBuffer chunk;                                      // Bytes read ahead from a blocking stream, or null.
+
+    /**
+     * Creates a decoder.
+     * @param maxLineBytes longest accepted line in bytes, without its newline.
+     * @param pool pool to borrow the buffer of an incomplete line from, or null to allocate it instead.
+     */
+    LineDecoder(int maxLineBytes, BufferPool pool) {
+        this.maxLineBytes = maxLineBytes;
+        this.pool = pool;
+    }
+
+    /**
+     * Consumes bytes from the buffer until a line is complete or the buffer is empty.
+     * Bytes after the line stay in the buffer for the next call.
+     * @return the next complete line without its terminator, or null if more bytes are needed.
+     * @throws ProtocolException if the line is longer than the limit.
+     */
+    String next(ByteBuffer in) throws ProtocolException {
+        int from = in.position();
+        int newline = from;
+        while (newline < in.limit() && in.get(newline) != '\n') newline++;
+        int length = newline - from;
+        int pending = pending();
+        if (pending + length > maxLineBytes) {
+            throw new ProtocolException("Line longer than " + maxLineBytes + " bytes");
+        }
+        if (newline == in.limit()) {                               // No newline yet: keep the start of the line.
+            if (length > 0) keep(in, from, length);
+            in.position(newline);
+            return null;
+        }
+        in.position(newline + 1);
+        if (pending == 0) return decode(in, from, newline);
+        keep(in, from, length);
+        String line = decode(partial, 0, partial.position());
+        release();
+        return line;
+    }
+
+    /**
+     * Reads the next line from a blocking stream. The decoder reads ahead into a small buffer of its own, so the stream
+     * needs no buffering and must only be read through the decoder.
+     * @return the next line without its terminator; the last line even if it has none; or null at the end of the stream.
+     * @throws ProtocolException if the line is longer than the limit.
+     */
+    String read(InputStream in) throws IOException {
+        if (chunk == null) chunk = ByteBuffer.allocate(STREAM_CHUNK).flip();
+        while (true) {
+            String line = next(chunk);
+            if (line != null) return line;
+            int n = in.read(chunk.array(), 0, chunk.capacity());
+            if (n < 0) {
+                if (pending() == 0) return null;
+                line = decode(partial, 0, partial.position());
+                release();
+                return line;
+            }
+            chunk.position(0).limit(n);
+        }
+    }
+
+    /**
+     * Gives the buffer of an incomplete line back to the pool, dropping the line. Also called when the connection closes.
+     * Without a pool, the buffer is kept for the next line.
+     */
+    void release() {
+        if (pool == null) {
+            if (partial != null) partial.clear();
+            return;
+        }
+        pool.release(partial);
+        partial = null;
+    }
+
+    /**
+     * Returns the number of bytes kept of an incomplete line.
+     */
+    private int pending() {
+        return partial == null ? 0 : partial.position();
+    }
+
+    /**
+     * Appends bytes of the incomplete line to its buffer, moving to a larger one when it is full.
+     * The caller has checked that the line stays within the limit.
+     */
+    private void keep(ByteBuffer in, int from, int length) {
+        if (length == 0) return;
+        if (partial == null && pool == null) partial = ByteBuffer.allocate(maxLineBytes);
+        if (partial == null || partial.remaining() < length) {
+            ByteBuffer larger = pool.acquire(pending() + length);
+            if (partial != null) {
+                larger.put(partial.flip());
+                pool.release(partial);
+            }
+            partial = larger;
+        }
+        partial.put(partial.position(), in, from, length);
+        partial.position(partial.position() + length);
+    }
+
+    /**
+     * Decodes the bytes of a line, without a trailing '\r'.
+     */
+    private static String decode(ByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') to--;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
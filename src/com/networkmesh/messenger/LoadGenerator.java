@@ -0,0 +1,261 @@
+package com.networkmesh.messenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator simulates many chat users against a NodeHost, without a console.
+ * Every simulated user is a client connection served by two virtual threads: a writer that sends messages
+ * at a fixed rate and a reader that takes in everything the server sends. Each message carries the time
+ * it was due to be sent, so the reader that receives it knows how long the delivery took.
+ * Measuring from the time a message was due rather than the time it went out also counts the delays
+ * of a sender held up by the server. Since all clients live in this process, their clocks agree.
+ *
+ * Settings are system properties: {@code load.clients} (default 100), {@code load.rate} messages per second
+ * per client (default 1), {@code load.size} bytes per message (default 64), {@code load.seconds} (default 30),
+ * {@code load.rooms} to spread the clients over that many rooms (default 1), {@code load.protocol}
+ * "line" or "binary", {@code load.host} and {@code mesh.clientPort}.
+ */
+public class LoadGenerator {
+
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2); // Time given to messages still on their way at the end.
+
+    private final String host;                                     // Server host name.
+    private final int port;                                        // Server client port.
+    private final int clients;                                     // Number of simulated users.
+    private final long intervalNanos;                              // Time between two messages of one client.
+    private final int size;                                        // Bytes of chat text per message.
+    private final long durationNanos;                              // How long the clients send.
+    private final int rooms;                                       // Rooms the clients are spread over.
+    private final boolean framed;                                  // Use the binary frame protocol.
+    private final String marker;                                   // "@<run>:" before every timestamp; tells this run's messages apart.
+    private final LatencyHistogram latency = new LatencyHistogram(); // Delivery latencies.
+    private final LongAdder sent = new LongAdder();                // Messages sent.
+    private final LongAdder expected = new LongAdder();            // Deliveries the sent messages should cause.
+    private final LongAdder received = new LongAdder();            // Messages of this run received.
+    private final LongAdder failed = new LongAdder();              // Clients that could not connect or lost their connection.
+    private final CountDownLatch connected;                        // Counted down by every client once it is in its room.
+    private final CountDownLatch start = new CountDownLatch(1);    // Released when all clients may start sending.
+    private final CountDownLatch stop = new CountDownLatch(1);     // Released when the clients may disconnect.
+    private volatile boolean sending = true;                       // Cleared when the clients must stop sending.
+    private volatile long startNanos;                              // When sending started.
+
+    /**
+     * Creates a load generator.
+     * @param host server host name.
+     * @param port server client port.
+     * @param clients number of simulated users.
+     * @param rate messages per second sent by each user.
+     * @param size bytes of chat text per message, timestamp included.
+     * @param seconds how long the users send messages.
+     * @param rooms number of rooms the users are spread over; 1 keeps everyone in the lobby.
+     * @param framed true to speak the binary frame protocol instead of lines of text.
+     */
+    public LoadGenerator(String host, int port, int clients, double rate, int size, int seconds, int rooms, boolean framed) {
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.size = size;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+        this.rooms = Math.max(1, rooms);
+        this.framed = framed;
+        this.marker = "@" + Integer.toHexString(ThreadLocalRandom.current().nextInt()) + ":";
+        this.connected = new CountDownLatch(clients);
+    }
+
+    /**
+     * Connects the clients, lets them send for the configured time while printing a line per second,
+     * then prints the totals and the latency percentiles.
+     */
+    public void run() throws InterruptedException {
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                int index = i;
+                threads.execute(() -> client(threads, index));
+            }
+            if (!connected.await(60, TimeUnit.SECONDS)) {
+                System.out.println("[Load] Only " + (clients - connected.getCount()) + " of " + clients + " clients connected.");
+            }
+            System.out.printf("[Load] %d clients in %d room(s), %d messages/s each, %d bytes per message, %s protocol.%n",
+                    clients, rooms, TimeUnit.SECONDS.toNanos(1) / intervalNanos, size, framed ? "binary" : "line");
+            startNanos = System.nanoTime();
+            start.countDown();
+
+            LatencyHistogram.Snapshot last = latency.snapshot();
+            long lastSent = 0, lastReceived = 0;
+            for (int second = 1; System.nanoTime() - startNanos < durationNanos; second++) {
+                LockSupport.parkNanos(startNanos + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+                LatencyHistogram.Snapshot now = latency.snapshot();
+                LatencyHistogram.Snapshot interval = now.since(last);
+                long nowSent = sent.sum(), nowReceived = received.sum();
+                System.out.printf("[Load] %3ds: sent %,d/s, received %,d/s, latency p50 %s, p99 %s, max %s%n", second,
+                        nowSent - lastSent, nowReceived - lastReceived,
+                        millis(interval.percentile(50)), millis(interval.percentile(99)), millis(interval.max()));
+                last = now;
+                lastSent = nowSent;
+                lastReceived = nowReceived;
+            }
+            sending = false;
+            long sendingNanos = System.nanoTime() - startNanos;
+            LockSupport.parkNanos(DRAIN_NANOS);
+            report(sendingNanos);
+            stop.countDown();
+        }
+    }
+
+    /**
+     * Prints the totals of the run.
+     * @param sendingNanos how long the clients were sending.
+     */
+    private void report(long sendingNanos) {
+        LatencyHistogram.Snapshot all = latency.snapshot();
+        double seconds = sendingNanos / 1e9;
+        System.out.printf("[Load] Sent %,d messages (%,.0f/s); received %,d of %,d expected deliveries (%,.0f/s).%n",
+                sent.sum(), sent.sum() / seconds, received.sum(), expected.sum(), received.sum() / seconds);
+        if (failed.sum() > 0) System.out.println("[Load] " + failed.sum() + " clients failed to connect or lost their connection.");
+        System.out.printf("[Load] Latency: mean %s, p50 %s, p90 %s, p99 %s, p99.9 %s, p99.99 %s, max %s%n",
+                millis((long) all.mean()), millis(all.percentile(50)), millis(all.percentile(90)), millis(all.percentile(99)),
+                millis(all.percentile(99.9)), millis(all.percentile(99.99)), millis(all.max()));
+    }
+
+    /**
+     * Formats nanoseconds as milliseconds.
+     */
+    private static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+
+    /**
+     * Runs one simulated user: connects, joins its room, starts its reader, then sends at the configured rate
+     * until told to stop, and finally says goodbye. Runs on a virtual thread.
+     * @param threads executor for the reader.
+     * @param index number of the user, used for its name and room.
+     */
+    private void client(ExecutorService threads, int index) {
+        boolean counted = false;
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            String name = "load-" + index;
+            if (framed) {
+                out.write(FrameCodec.MAGIC);
+                FrameCodec.write(out, FrameCodec.HELLO, 0, name.getBytes(StandardCharsets.UTF_8));
+            } else {
+                send(out, name);
+            }
+            int room = index % rooms;
+            if (rooms > 1) send(out, "/join room-" + room);
+            out.flush();
+            threads.execute(() -> read(socket));
+            connected.countDown();
+            counted = true;
+            start.await();
+
+            int peers = clients / rooms + (room < clients % rooms ? 1 : 0) - 1;   // Other members of the room.
+            StringBuilder message = new StringBuilder(size);
+            long next = startNanos + ThreadLocalRandom.current().nextLong(intervalNanos); // Spread the clients over the first interval.
+            while (sending) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+                if (!sending) break;
+                message.setLength(0);
+                message.append(marker).append(next).append(' ');
+                while (message.length() < size) message.append('x');
+                send(out, message.toString());
+                out.flush();
+                sent.increment();
+                expected.add(peers);
+                next += intervalNanos;
+            }
+            stop.await();
+            send(out, "/exit");
+            out.flush();
+        } catch (IOException e) {
+            failed.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!counted) connected.countDown();
+        }
+    }
+
+    /**
+     * Sends one line or one TEXT frame. The caller flushes.
+     */
+    private void send(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (framed) {
+            FrameCodec.write(out, FrameCodec.TEXT, 0, bytes);
+        } else {
+            out.write(bytes);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Reader of one simulated user: records the latency of every message of this run it receives.
+     * Runs on a virtual thread until the connection closes.
+     */
+    private void read(Socket socket) {
+        try {
+            if (framed) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                FrameCodec.Frame frame;
+                while ((frame = FrameCodec.read(in)) != null) {
+                    if (frame.type == FrameCodec.TEXT) received(new String(frame.payload, StandardCharsets.UTF_8));
+                }
+            } else {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) received(line);
+            }
+        } catch (IOException e) {
+            if (sending) failed.increment();
+        }
+    }
+
+    /**
+     * Records the latency of a received message if it was sent during this run.
+     * @param text the message as the server delivered it, "[user] @run:timestamp xxx".
+     */
+    private void received(String text) {
+        int at = text.indexOf(marker);
+        if (at < 0) return;                                        // A notice, or a message from another run.
+        int from = at + marker.length();
+        int to = text.indexOf(' ', from);
+        long due = Long.parseLong(text, from, to < 0 ? text.length() : to, 10);
+        latency.record(System.nanoTime() - due);
+        received.increment();
+    }
+
+    /**
+     * Main method to run a load test against a local NodeHost, configured with "load.*" system properties.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator(
+                System.getProperty("load.host", "localhost"),
+                Integer.getInteger("mesh.clientPort", 8080),
+                Integer.getInteger("load.clients", 100),
+                Double.parseDouble(System.getProperty("load.rate", "1")),
+                Integer.getInteger("load.size", 64),
+                Integer.getInteger("load.seconds", 30),
+                Integer.getInteger("load.rooms", 1),
+                System.getProperty("load.protocol", "line").equalsIgnoreCase("binary"));
+        generator.run();
+    }
+}
@@ -0,0 +1,193 @@
+package com.networkmesh.messenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MeshLink is a persistent connection between two hosts of the mesh.
+ * Both ends speak the binary frame protocol: a HELLO frame carrying the host's node ID, then the
+ * host-to-host frames listed in FrameCodec.
+ * Like a client connection, a link has an outbox drained by its own writer, so forwarding a message
+ * only enqueues it, and messages queued close together go out in one write. A link that falls too far
+ * behind drops room and private messages, never subscriptions or presence changes: if one of those does
+ * not fit, the link is closed, and the router announces its state again once the link is back.
+ */
+class MeshLink {
+
+    private static final byte[] HELLO = "mesh".getBytes(StandardCharsets.UTF_8); // Payload of a link's HELLO frame.
+    private static final int CAPACITY = 64 * 1024;                 // Messages that may wait for a slow link.
+    private static final long MAX_BYTES = 64L * 1024 * 1024;       // Bytes that may wait for a slow link.
+
+    private final MeshRouter router;                               // Router the link belongs to.
+    private final Socket socket;                                   // Connection to the other host.
+    private final DataInputStream input;                           // Frames from the other host.
+    private final OutputStream output;                             // Frames to the other host.
+    private final Outbox outbox;                                   // Frames waiting to be written.
+    private final String address;                                  // "host:port" dialed, or null for an accepted link.
+    private final AtomicBoolean closed = new AtomicBoolean();      // Set once the link has been closed.
+    private volatile boolean superseded;                           // Replaced by another link to the same host.
+    private int nodeId = -1;                                       // Node ID of the other host, once known.
+
+    /**
+     * Wraps a connection to another host.
+     * @param socket the connection.
+     * @param address the "host:port" that was dialed, or null if the other host connected to us.
+     * @param router the router the link belongs to.
+     */
+    MeshLink(Socket socket, String address, MeshRouter router) throws IOException {
+        this.socket = socket;
+        this.address = address;
+        this.router = router;
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = socket.getOutputStream();
+        this.outbox = new Outbox(CAPACITY, SlowConsumerPolicy.DROP_NEWEST, MAX_BYTES, Long.MAX_VALUE, null, null);
+    }
+
+    /**
+     * Exchanges HELLO frames with the other host.
+     * @param localId node ID of this host.
+     * @param timeoutMillis how long to wait for the other host's HELLO.
+     * @return the other host's node ID.
+     * @throws ProtocolException if the other host does not answer with a HELLO carrying a valid node ID.
+     */
+    int handshake(int localId, long timeoutMillis) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        FrameCodec.write(out, FrameCodec.HELLO, localId, HELLO);
+        out.flush();
+
+        socket.setSoTimeout((int) timeoutMillis);
+        FrameCodec.Frame hello = FrameCodec.read(input);
+        socket.setSoTimeout(0);
+        if (hello == null || hello.type != FrameCodec.HELLO) {
+            throw new ProtocolException("Expected a HELLO frame from the other host");
+        }
+        if (hello.sender < 0 || hello.sender > SessionIdAllocator.MAX_NODE_ID) {
+            throw new ProtocolException("Invalid node ID from the other host: " + hello.sender);
+        }
+        nodeId = hello.sender;
+        return nodeId;
+    }
+
+    /**
+     * Starts the reader and writer of the link.
+     * @param host the server, which runs the two loops.
+     */
+    void start(NodeHost host) {
+        host.execute(this::readFrames);
+        host.execute(() -> writeOutbox(host));
+    }
+
+    /**
+     * Queues a frame for the other host. Safe to call from any thread.
+     * A message is dropped if the link is too far behind; a control frame that does not fit closes the link.
+     * @param frame the encoded frame, possibly shared with other links.
+     */
+    void send(ByteBuffer frame) {
+        if (outbox.offer(frame) == Outbox.Offer.DROPPED && isControl(frame)) {
+            System.out.println("[Mesh] Link to node " + nodeId + " is too far behind; closing it to resync.");
+            close();
+        }
+    }
+
+    /**
+     * Tells whether a frame carries mesh state, such as a subscription, rather than a message.
+     * @param frame the encoded frame; its position is not moved.
+     */
+    private static boolean isControl(ByteBuffer frame) {
+        byte type = frame.get(frame.position() + 4);             // After the length prefix.
+        return type != FrameCodec.FORWARD && type != FrameCodec.DIRECT;
+    }
+
+    /**
+     * Returns the node ID of the other host, or -1 before the handshake.
+     */
+    int nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns the address this link was dialed to, or null if the other host connected to us.
+     */
+    String address() {
+        return address;
+    }
+
+    /**
+     * Tells whether this host dialed the link.
+     */
+    boolean isDialed() {
+        return address != null;
+    }
+
+    /**
+     * Closes the link because another link to the same host is kept instead.
+     */
+    void supersede() {
+        superseded = true;
+        close();
+    }
+
+    /**
+     * Tells whether the link was closed in favour of another one.
+     */
+    boolean isSuperseded() {
+        return superseded;
+    }
+
+    /**
+     * Closes the link. Its reader notices and tells the router. Safe to call from any thread, more than once.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        outbox.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reader loop: hands every frame to the router until the link fails or is closed.
+     */
+    private void readFrames() {
+        try {
+            FrameCodec.Frame frame;
+            while ((frame = FrameCodec.read(input)) != null) {
+                router.receive(this, frame);
+            }
+        } catch (IOException e) {
+            // The other host is gone or sent something we do not understand.
+        } finally {
+            close();
+            router.closed(this);
+        }
+    }
+
+    /**
+     * Writer loop: writes queued frames, coalescing them like a client's writer does.
+     * @param host the server, for the coalescing settings and the buffer pool.
+     */
+    private void writeOutbox(NodeHost host) {
+        NodeConfig config = host.config();
+        try {
+            outbox.drainTo(Channels.newChannel(output), TimeUnit.MICROSECONDS.toNanos(config.coalesceDelayMicros),
+                    host.buffers(), config.coalesceBytes);
+        } catch (IOException | InterruptedException e) {
+            // The link failed; closing it below also ends the reader.
+        } finally {
+            close();
+        }
+    }
+}
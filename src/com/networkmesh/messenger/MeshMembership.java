@@ -0,0 +1,488 @@
+package com.networkmesh.messenger;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MeshMembership keeps track of which hosts belong to the mesh, following the SWIM protocol.
+ * Every protocol period a host pings one member, round-robin in random order. If no ack comes back
+ * in time it asks a few other members to ping it on its behalf (ping-req); if none of them gets an ack
+ * either, the member is suspected, and declared dead if it does not refute the suspicion in time.
+ * Membership changes ride along on the pings and acks (a bounded number per packet, each sent a
+ * logarithmic number of times), so the traffic per host stays constant as the mesh grows and no
+ * coordinator is needed. Hosts find each other through the configured peers, used as seeds.
+ *
+ * Gossip travels over UDP on the same port number as the links. All protocol state is owned by
+ * a single thread; the member table can be read from any thread.
+ */
+public class MeshMembership implements Runnable {
+
+    private static final byte PING = 1;                            // Are you alive? Answered with an ACK.
+    private static final byte ACK = 2;                             // Answer to a PING, possibly relayed.
+    private static final byte PING_REQ = 3;                        // Please ping this member for me.
+
+    private static final int MAX_PACKET = 1400;                    // Largest datagram, below a typical MTU.
+    private static final int MAX_UPDATES = 8;                      // Membership changes piggybacked per packet.
+    private static final int INDIRECT_PROBES = 3;                  // Members asked to ping a silent member.
+    private static final int RETRANSMIT_FACTOR = 3;                // A change is sent this many times log2(members).
+    private static final int DEAD_RETENTION = 10;                  // Dead members are forgotten after this many suspicion timeouts.
+
+    /**
+     * What a host believes about a member.
+     */
+    public enum State {
+        /** The member answers pings. */
+        ALIVE,
+        /** The member did not answer and has a suspicion timeout to refute it. */
+        SUSPECT,
+        /** The member did not refute the suspicion in time. */
+        DEAD
+    }
+
+    private final MeshRouter router;                               // Told when members come and go.
+    private final int nodeId;                                      // Node ID of this host.
+    private final int port;                                        // UDP port, the same number as the link port.
+    private final long periodNanos;                                // Length of a protocol period.
+    private final long suspectNanos;                               // Time a suspected member has to refute.
+    private final List<InetSocketAddress> seeds = new ArrayList<>(); // Peers to contact while no member is known.
+    private final ConcurrentHashMap<Integer, Member> members = new ConcurrentHashMap<>(); // Other hosts by node ID.
+    private final Map<Integer, Update> updates = new LinkedHashMap<>(); // Changes still to be gossiped, by node ID.
+    private final Map<Integer, Relay> relays = new HashMap<>();    // Pings sent on behalf of another member, by sequence number.
+    private final List<Member> probeOrder = new ArrayList<>();     // Members left to probe in this round.
+    private final byte[] receiveBuffer = new byte[MAX_PACKET];     // Incoming datagrams.
+    private DatagramSocket socket;                                 // Socket for all gossip traffic.
+    private int incarnation;                                       // Version of this host's own ALIVE record.
+    private int nextSeq;                                           // Sequence number of the next ping.
+    private Member probe;                                          // Member probed in the current period.
+    private int probeSeq;                                          // Sequence number of that probe.
+    private boolean probeAcked;                                    // Whether the member answered.
+    private boolean indirectSent;                                  // Whether ping-reqs went out for it.
+    private long probeDeadline;                                    // When to fall back to ping-reqs.
+    private volatile boolean running = true;                       // Cleared to stop the gossip thread.
+
+    /**
+     * Creates the membership of a host. Nothing is sent until {@link #start()}.
+     * @param router the router, told to link to members that join and to drop members that die.
+     * @param config the host's settings: node ID, link port, peers and gossip timing.
+     */
+    MeshMembership(MeshRouter router, NodeConfig config) {
+        this.router = router;
+        this.nodeId = config.nodeId;
+        this.port = config.linkPort;
+        this.periodNanos = TimeUnit.MILLISECONDS.toNanos(config.gossipIntervalMillis);
+        this.suspectNanos = TimeUnit.MILLISECONDS.toNanos(config.suspectTimeoutMillis);
+        // Seconds since the epoch, so a restarted host starts above the incarnation its old self had.
+        this.incarnation = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        for (String peer : config.peers.split(",")) {
+            if (peer.isBlank()) continue;
+            try {
+                seeds.add(MeshRouter.parseAddress(peer.trim()));
+            } catch (IllegalArgumentException e) {
+                System.out.println("[Mesh] Ignoring peer " + peer + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens the gossip socket and starts the gossip thread.
+     */
+    void start() throws SocketException {
+        socket = new DatagramSocket(port);
+        Thread thread = new Thread(this, "mesh-gossip");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops gossiping. Other hosts will eventually declare this host dead.
+     */
+    void shutdown() {
+        running = false;
+        if (socket != null) socket.close();
+    }
+
+    /**
+     * Returns a live view of the other hosts this host knows about, dead ones included
+     * until they are forgotten.
+     */
+    public Collection<Member> members() {
+        return members.values();
+    }
+
+    /**
+     * Gossip loop: starts a new protocol period when the current one ends, falls back to ping-reqs
+     * when a probe is not acked in time, and handles incoming datagrams in between.
+     */
+    @Override
+    public void run() {
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        long nextPeriod = System.nanoTime();
+        while (running) {
+            try {
+                long now = System.nanoTime();
+                if (now - nextPeriod >= 0) {
+                    startPeriod(now);
+                    nextPeriod = now + periodNanos;
+                }
+                if (probe != null && !probeAcked && !indirectSent && now - probeDeadline >= 0) {
+                    sendIndirectProbes();
+                }
+                long wake = nextPeriod;
+                if (probe != null && !probeAcked && !indirectSent && probeDeadline - wake < 0) wake = probeDeadline;
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wake - now)));
+                try {
+                    packet.setLength(receiveBuffer.length);
+                    socket.receive(packet);
+                    handle(packet);
+                } catch (SocketTimeoutException e) {
+                    // Time to start a period or send ping-reqs.
+                }
+            } catch (IOException e) {
+                if (running) System.out.println("[Mesh] Gossip error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Ends the previous protocol period, suspecting its member if it never answered,
+     * and probes the next member.
+     */
+    private void startPeriod(long now) throws IOException {
+        if (probe != null && !probeAcked && probe.state == State.ALIVE) {
+            change(probe, State.SUSPECT, probe.incarnation, null);
+        }
+        probe = null;
+        expire(now);
+
+        Member next = nextProbe();
+        if (next == null) {
+            for (InetSocketAddress seed : seeds) send(seed, PING, 0, 0, null);  // Nobody known yet: ask the seeds.
+            return;
+        }
+        probe = next;
+        probeSeq = ++nextSeq;
+        probeAcked = false;
+        indirectSent = false;
+        probeDeadline = now + periodNanos / 2;
+        send(next.address, PING, probeSeq, 0, null);
+    }
+
+    /**
+     * Picks the next member to probe, going round-robin through a shuffled list of live members.
+     * @return the member, or null if no live member is known.
+     */
+    private Member nextProbe() {
+        while (true) {
+            if (probeOrder.isEmpty()) {
+                for (Member member : members.values()) {
+                    if (member.state != State.DEAD) probeOrder.add(member);
+                }
+                if (probeOrder.isEmpty()) return null;
+                Collections.shuffle(probeOrder);
+            }
+            Member member = probeOrder.remove(probeOrder.size() - 1);
+            if (member.state != State.DEAD && members.get(member.nodeId) == member) return member;
+        }
+    }
+
+    /**
+     * Asks a few random members to ping the member that did not answer the direct probe.
+     */
+    private void sendIndirectProbes() throws IOException {
+        indirectSent = true;
+        List<Member> helpers = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member != probe && member.state == State.ALIVE) helpers.add(member);
+        }
+        Collections.shuffle(helpers);
+        for (int i = 0; i < Math.min(INDIRECT_PROBES, helpers.size()); i++) {
+            send(helpers.get(i).address, PING_REQ, probeSeq, probe.nodeId, probe.address);
+        }
+    }
+
+    /**
+     * Declares dead the suspects whose timeout ran out, forgets members that have been dead for long,
+     * and drops relays that were never answered.
+     */
+    private void expire(long now) {
+        Iterator<Member> it = members.values().iterator();
+        while (it.hasNext()) {
+            Member member = it.next();
+            if (member.state == State.SUSPECT && now - member.changedAt > suspectNanos) {
+                change(member, State.DEAD, member.incarnation, null);
+            } else if (member.state == State.DEAD && now - member.changedAt > DEAD_RETENTION * suspectNanos) {
+                it.remove();
+                updates.remove(member.nodeId);
+            }
+        }
+        relays.values().removeIf(relay -> now - relay.expiresAt > 0);
+    }
+
+    /**
+     * Handles one datagram: learns about the sender, applies the piggybacked changes and answers.
+     */
+    private void handle(DatagramPacket packet) throws IOException {
+        InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+        ByteBuffer in = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+        try {
+            byte type = in.get();
+            int sender = in.getInt();
+            int senderIncarnation = in.getInt();
+            int seq = in.getInt();
+            int subject = in.getInt();
+            InetSocketAddress target = type == PING_REQ ? readAddress(in, from) : null;
+            if (sender == nodeId) return;                          // Our own packet, e.g. we are our own seed.
+
+            apply(State.ALIVE, sender, senderIncarnation, from);
+            int count = in.get() & 0xFF;
+            for (int i = 0; i < count; i++) {
+                State state = State.values()[in.get()];
+                int id = in.getInt();
+                int version = in.getInt();
+                InetSocketAddress address = readAddress(in, id == sender ? from : null);
+                if (address != null) apply(state, id, version, address);
+            }
+
+            switch (type) {
+                case PING:
+                    send(from, ACK, seq, nodeId, null);
+                    break;
+                case ACK:
+                    if (probe != null && seq == probeSeq && subject == probe.nodeId) probeAcked = true;
+                    Relay relay = relays.remove(seq);
+                    if (relay != null) send(relay.requester, ACK, relay.seq, subject, null);
+                    break;
+                case PING_REQ:
+                    int relaySeq = ++nextSeq;
+                    relays.put(relaySeq, new Relay(from, seq, System.nanoTime() + periodNanos));
+                    send(target, PING, relaySeq, 0, null);
+                    break;
+            }
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            // Truncated or garbled datagram: ignore it.
+        }
+    }
+
+    /**
+     * Applies what another host says about a member, if it is newer than what we know.
+     * A suspicion about this host itself is refuted by raising its incarnation.
+     */
+    private void apply(State state, int id, int version, InetSocketAddress address) {
+        if (id == nodeId) {
+            if (state != State.ALIVE && version - incarnation >= 0) {
+                incarnation = version + 1;
+                queueSelf();
+            }
+            return;
+        }
+        Member member = members.get(id);
+        if (member == null) {
+            if (state == State.DEAD) return;                       // Never heard of it, nothing to forget.
+            member = new Member(id, address, state, version);
+            members.put(id, member);
+            queue(member);
+            System.out.println("[Mesh] Node " + id + " at " + member.linkAddress() + " joined the mesh.");
+            router.memberAlive(member);
+            return;
+        }
+        if (overrides(state, version, member)) change(member, state, version, address);
+    }
+
+    /**
+     * Tells whether a claim about a member replaces what we know, following the SWIM ordering:
+     * a higher incarnation wins, at equal incarnation SUSPECT beats ALIVE, and DEAD beats both.
+     */
+    private static boolean overrides(State state, int version, Member member) {
+        switch (state) {
+            case ALIVE:
+                return version - member.incarnation > 0;
+            case SUSPECT:
+                if (member.state == State.DEAD) return false;
+                return version - member.incarnation > 0 || (version == member.incarnation && member.state == State.ALIVE);
+            default:
+                return member.state != State.DEAD;
+        }
+    }
+
+    /**
+     * Records a new state for a member, queues the change for gossip and tells the router.
+     */
+    private void change(Member member, State state, int version, InetSocketAddress address) {
+        State previous = member.state;
+        member.state = state;
+        member.incarnation = version;
+        if (address != null) member.address = address;
+        queue(member);
+        if (state != previous) {
+            member.changedAt = System.nanoTime();
+            System.out.println("[Mesh] Node " + member.nodeId + " is " + state.name().toLowerCase() + ".");
+        }
+        if (state == State.DEAD) {
+            router.memberDead(member);
+        } else if (state == State.ALIVE) {
+            router.memberAlive(member);                            // Back, or restarted: make sure it is linked.
+        }
+    }
+
+    /**
+     * Queues a member's current record for gossip, replacing an older change about it.
+     */
+    private void queue(Member member) {
+        updates.put(member.nodeId, new Update(member.state, member.nodeId, member.incarnation, member.address));
+    }
+
+    /**
+     * Queues this host's own ALIVE record for gossip.
+     */
+    private void queueSelf() {
+        updates.put(nodeId, new Update(State.ALIVE, nodeId, incarnation, null));
+    }
+
+    /**
+     * Sends a gossip datagram with as many pending changes as fit.
+     * @param to the recipient.
+     * @param type PING, ACK or PING_REQ.
+     * @param seq the sequence number of the ping.
+     * @param subject for an ACK the node that answered, for a PING_REQ the node to ping.
+     * @param target for a PING_REQ the address of the node to ping, otherwise null.
+     */
+    private void send(InetSocketAddress to, byte type, int seq, int subject, InetSocketAddress target) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(MAX_PACKET);
+        out.put(type).putInt(nodeId).putInt(incarnation).putInt(seq).putInt(subject);
+        if (type == PING_REQ) writeAddress(out, target);
+
+        List<Update> pending = new ArrayList<>(updates.values());
+        pending.sort((a, b) -> Integer.compare(a.sent, b.sent)); // Least gossiped first.
+        int count = Math.min(MAX_UPDATES, pending.size());
+        out.put((byte) count);
+        int limit = RETRANSMIT_FACTOR * (32 - Integer.numberOfLeadingZeros(members.size() + 1));
+        for (int i = 0; i < count; i++) {
+            Update update = pending.get(i);
+            out.put((byte) update.state.ordinal()).putInt(update.nodeId).putInt(update.incarnation);
+            writeAddress(out, update.address);
+            if (++update.sent >= limit) updates.remove(update.nodeId, update);
+        }
+        socket.send(new DatagramPacket(out.array(), out.position(), to));
+    }
+
+    /**
+     * Writes an address as its IP length, IP and port. A null address is written with an empty IP,
+     * meaning "the address this datagram came from".
+     */
+    private void writeAddress(ByteBuffer out, InetSocketAddress address) {
+        if (address == null) {
+            out.put((byte) 0).putShort((short) port);
+        } else {
+            byte[] ip = address.getAddress().getAddress();
+            out.put((byte) ip.length).put(ip).putShort((short) address.getPort());
+        }
+    }
+
+    /**
+     * Reads an address written by {@link #writeAddress}.
+     * @param sender address to use for an empty IP, or null to reject one.
+     */
+    private static InetSocketAddress readAddress(ByteBuffer in, InetSocketAddress sender) throws UnknownHostException {
+        byte[] ip = new byte[in.get() & 0xFF];
+        in.get(ip);
+        int port = in.getShort() & 0xFFFF;
+        if (ip.length == 0) return sender == null ? null : new InetSocketAddress(sender.getAddress(), port);
+        return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+    }
+
+    /**
+     * Another host of the mesh, as seen by this host.
+     */
+    public static final class Member {
+
+        public final int nodeId;                                   // Node ID of the host.
+        volatile InetSocketAddress address;                        // Gossip address, which is also its link address.
+        volatile State state;                                      // What we believe about it.
+        volatile int incarnation;                                  // Version of that belief.
+        long changedAt;                                            // System.nanoTime() of the last change of state.
+
+        /**
+         * Creates a member record.
+         */
+        Member(int nodeId, InetSocketAddress address, State state, int incarnation) {
+            this.nodeId = nodeId;
+            this.address = address;
+            this.state = state;
+            this.incarnation = incarnation;
+            this.changedAt = System.nanoTime();
+        }
+
+        /**
+         * Returns what this host believes about the member.
+         */
+        public State state() {
+            return state;
+        }
+
+        /**
+         * Returns the member's link address as "host:port".
+         */
+        public String linkAddress() {
+            return address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+    }
+
+    /**
+     * A membership change waiting to be gossiped.
+     */
+    private static final class Update {
+
+        final State state;                                         // Gossiped state.
+        final int nodeId;                                          // Member it is about.
+        final int incarnation;                                     // Version of the state.
+        final InetSocketAddress address;                           // Member's address, null for this host itself.
+        int sent;                                                  // Packets it has been piggybacked on.
+
+        /**
+         * Creates a pending change.
+         */
+        Update(State state, int nodeId, int incarnation, InetSocketAddress address) {
+            this.state = state;
+            this.nodeId = nodeId;
+            this.incarnation = incarnation;
+            this.address = address;
+        }
+    }
+
+    /**
+     * A ping sent on behalf of a member that asked with a PING_REQ.
+     */
+    private static final class Relay {
+
+        final InetSocketAddress requester;                         // Member that asked.
+        final int seq;                                             // Its sequence number, echoed in the ACK.
+        final long expiresAt;                                      // When to stop waiting for the ACK.
+
+        /**
+         * Creates a pending relay.
+         */
+        Relay(InetSocketAddress requester, int seq, long expiresAt) {
+            this.requester = requester;
+            this.seq = seq;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,617 @@
+package com.networkmesh.messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+/**
+ * MeshRouter joins a NodeHost to other hosts so that users on different hosts share one chat.
+ * Hosts keep persistent links to each other (see MeshLink); every room message sent on one host
+ * is flooded to all linked hosts, which deliver it to the members of the room and relay it further.
+ * Every message carries an ID made of the origin's node ID and a counter, and each host remembers
+ * the IDs it has recently seen, so a message reaches every host once even when the links form loops.
+ * When the host has a link port, MeshMembership discovers the other hosts and the router links to
+ * the ones that join and drops the ones that die; otherwise only the configured peers are linked.
+ *
+ * With membership the hosts form a full mesh, and rather than flooding every message to every host,
+ * each room and each username is placed on an owner host by a HashRing over the linked hosts.
+ * Every host subscribes to the owner of each room it has members in; a room message goes to the
+ * owner, which passes it on to the subscribed hosts only. The owner of a username knows on which hosts
+ * the users of that name are, so private messages find their recipient in at most two hops; when several
+ * users share a name, the one that joined first gets them. When hosts come or go,
+ * only the rooms and usernames whose owner changed are announced again.
+ */
+public class MeshRouter {
+
+    private static final int SEEN_CAPACITY = 64 * 1024;           // Message IDs remembered for loop prevention.
+    private static final long REDIAL_MILLIS = 2000;                // Wait before dialing a lost peer again.
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;        // Wait for a peer to accept a connection.
+
+    private final NodeHost host;                                   // Server this router belongs to.
+    private final int nodeId;                                      // Node ID of this host.
+    private final AtomicLong nextMessage;                          // Next message ID of this host.
+    private final ConcurrentHashMap<Integer, MeshLink> links = new ConcurrentHashMap<>(); // Live links by remote node ID.
+    private final SeenSet seen = new SeenSet(SEEN_CAPACITY);       // IDs of recently routed messages.
+    private final Set<String> targets = ConcurrentHashMap.newKeySet(); // Link addresses this host keeps dialing.
+    private final ConcurrentHashMap<String, Set<Integer>> interest = new ConcurrentHashMap<>(); // Owned rooms: hosts with members.
+    private final ConcurrentHashMap<String, int[]> presence = new ConcurrentHashMap<>(); // Owned usernames: session IDs, oldest first.
+    private final ReentrantLock ringLock = new ReentrantLock();    // Serializes ring changes.
+    private volatile HashRing ring;                                // Placement of rooms and usernames.
+    private ServerSocket listener;                                 // Accepts links from other hosts, if configured.
+    private MeshMembership membership;                             // Gossip membership, if there is a link port.
+    private volatile boolean running;                              // Cleared on shutdown to stop redialing.
+
+    /**
+     * Creates the router of a server. Nothing is connected until {@link #start()}.
+     * @param host the server.
+     */
+    MeshRouter(NodeHost host) {
+        this.host = host;
+        this.nodeId = host.config().nodeId;
+        // Node ID in the top byte, a random epoch so that a restarted host does not reuse IDs
+        // its peers still remember, and a counter in the low 40 bits.
+        long epoch = ThreadLocalRandom.current().nextLong(1 << 16);
+        this.nextMessage = new AtomicLong(((long) nodeId << 56) | (epoch << 40));
+        this.ring = new HashRing(Collections.singleton(nodeId));
+    }
+
+    /**
+     * Opens the link port and dials the configured peers, if any.
+     */
+    void start() {
+        NodeConfig config = host.config();
+        running = true;
+        if (config.linkPort > 0) {
+            try {
+                listener = new ServerSocket(config.linkPort);
+                Thread acceptor = new Thread(this::acceptLinks, "mesh-accept");
+                acceptor.setDaemon(true);
+                acceptor.start();
+                System.out.println("[Mesh] Node " + nodeId + " accepting links on port " + config.linkPort);
+                membership = new MeshMembership(this, config);
+                membership.start();
+            } catch (IOException e) {
+                System.out.println("[Mesh] Cannot open link port " + config.linkPort + ": " + e.getMessage());
+            }
+        }
+        for (String peer : config.peers.split(",")) {
+            if (!peer.isBlank() && targets.add(peer.trim())) host.execute(() -> dial(peer.trim()));
+        }
+    }
+
+    /**
+     * Closes every link and stops accepting and dialing.
+     */
+    void shutdown() {
+        running = false;
+        if (membership != null) membership.shutdown();
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (MeshLink link : links.values()) link.close();
+    }
+
+    /**
+     * Returns the gossip membership of this host, or null if it has no link port.
+     */
+    public MeshMembership membership() {
+        return membership;
+    }
+
+    /**
+     * Returns the number of hosts this host currently has a link to.
+     */
+    public int linkCount() {
+        return links.size();
+    }
+
+    /**
+     * Returns the current placement of rooms and usernames.
+     */
+    public HashRing ring() {
+        return ring;
+    }
+
+    /**
+     * Sends a message that was posted on this host to the same room on the other hosts: to the room's
+     * owner, or to every linked host when there is no membership to place rooms with.
+     * Only enqueues; the frame is encoded once and shared by all links.
+     * @param room name of the room the message was posted in.
+     * @param envelope the message.
+     */
+    void forward(String room, Envelope envelope) {
+        if (links.isEmpty()) return;
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 1 + 1 + name.length + envelope.body.length;
+        if (length > FrameCodec.MAX_FRAME - FrameCodec.HEADER_SIZE) {
+            System.out.println("[Mesh] Message too large to forward, delivered locally only.");
+            return;
+        }
+        long id = nextMessage.getAndIncrement();
+        seen.add(id);
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.putLong(id).put(envelope.type).put((byte) name.length).put(name).put(envelope.body);
+        route(room, nodeId, FrameCodec.encode(FrameCodec.FORWARD, envelope.sender, payload.array()), null);
+    }
+
+    /**
+     * Passes a room message on. Without membership the message is flooded to every link but the one
+     * it came from. Otherwise the origin sends it to the room's owner, and the owner sends it to the
+     * subscribed hosts other than the origin; other hosts only deliver it.
+     * @param room the room.
+     * @param origin node ID of the host the message was posted on.
+     * @param frame the FORWARD frame.
+     * @param from the link it arrived on, or null if it was posted on this host.
+     */
+    private void route(String room, int origin, ByteBuffer frame, MeshLink from) {
+        if (membership == null) {
+            for (MeshLink link : links.values()) {
+                if (link != from) link.send(frame);
+            }
+            return;
+        }
+        int owner = ring.owner(room);
+        if (owner == nodeId) {
+            Set<Integer> hosts = interest.get(room);
+            if (hosts == null) return;
+            for (int node : hosts) {
+                if (node != origin && (from == null || node != from.nodeId())) sendTo(node, frame);
+            }
+        } else if (from == null && !sendTo(owner, frame)) {
+            for (MeshLink link : links.values()) link.send(frame);  // Owner not linked yet: fall back to flooding.
+        }
+    }
+
+    /**
+     * Handles a frame from another host. Called on the link's reader thread.
+     * @param from the link the frame arrived on.
+     * @param frame the frame.
+     */
+    void receive(MeshLink from, FrameCodec.Frame frame) throws ProtocolException {
+        switch (frame.type) {
+            case FrameCodec.FORWARD:
+                receiveForward(from, frame);
+                break;
+            case FrameCodec.SUBSCRIBE:
+            case FrameCodec.UNSUBSCRIBE:
+            case FrameCodec.PRESENCE:
+            case FrameCodec.ABSENCE:
+                apply(frame.type, frame.sender, new String(frame.payload, StandardCharsets.UTF_8));
+                break;
+            case FrameCodec.DIRECT:
+                receiveDirect(frame);
+                break;
+        }
+    }
+
+    /**
+     * Handles a room message from another host: drops it if it was already seen, otherwise delivers
+     * it to the local members of its room and routes it further.
+     */
+    private void receiveForward(MeshLink from, FrameCodec.Frame frame) throws ProtocolException {
+        ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+        if (payload.remaining() < 10) throw new ProtocolException("Truncated FORWARD frame");
+        long id = payload.getLong();
+        byte type = payload.get();
+        int nameLength = payload.get() & 0xFF;
+        if (payload.remaining() < nameLength) throw new ProtocolException("Truncated FORWARD frame");
+        if (!seen.add(id)) return;
+
+        String room = new String(frame.payload, payload.position(), nameLength, StandardCharsets.UTF_8);
+        payload.position(payload.position() + nameLength);
+        byte[] body = new byte[payload.remaining()];
+        payload.get(body);
+
+        Room target = host.rooms().get(room);
+        if (target != null) host.publish(target, new Envelope(type, frame.sender, body), null);
+
+        route(room, (int) (id >>> 56), FrameCodec.encode(FrameCodec.FORWARD, frame.sender, frame.payload), from);
+    }
+
+    /**
+     * Called by the room registry when a room gets its first local member or loses its last one,
+     * so the room's owner knows whether to send this host the room's messages.
+     * @param room the room name.
+     * @param open true if the room now has local members.
+     */
+    void roomChanged(String room, boolean open) {
+        announce(room, open ? FrameCodec.SUBSCRIBE : FrameCodec.UNSUBSCRIBE, nodeId);
+    }
+
+    /**
+     * Called when a client joins or leaves this host, so the owner of its username knows where it is.
+     * @param username the client's username.
+     * @param sessionID the client's session ID.
+     * @param joined true on join, false on leave.
+     */
+    void sessionChanged(String username, int sessionID, boolean joined) {
+        announce(username, joined ? FrameCodec.PRESENCE : FrameCodec.ABSENCE, sessionID);
+    }
+
+    /**
+     * Sends a subscription or presence change to the owner of its key, or applies it if this host is the owner.
+     */
+    private void announce(String key, byte type, int sender) {
+        if (membership == null) return;
+        int owner = ring.owner(key);
+        if (owner == nodeId) {
+            apply(type, sender, key);
+        } else {
+            sendTo(owner, FrameCodec.encode(type, sender, key.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Records a subscription or presence change for a room or username this host owns.
+     * @param type SUBSCRIBE, UNSUBSCRIBE, PRESENCE or ABSENCE.
+     * @param sender node ID of the subscribing host, or session ID of the user.
+     * @param key the room name or username.
+     */
+    private void apply(byte type, int sender, String key) {
+        switch (type) {
+            case FrameCodec.SUBSCRIBE:
+                if (sender != nodeId) interest.computeIfAbsent(key, room -> ConcurrentHashMap.newKeySet()).add(sender);
+                break;
+            case FrameCodec.UNSUBSCRIBE:
+                interest.computeIfPresent(key, (room, hosts) -> {
+                    hosts.remove(sender);
+                    return hosts.isEmpty() ? null : hosts;
+                });
+                break;
+            case FrameCodec.PRESENCE:
+                presence.merge(key, new int[] {sender}, (held, added) -> {
+                    for (int sessionID : held) if (sessionID == sender) return held;
+                    int[] all = Arrays.copyOf(held, held.length + 1);
+                    all[held.length] = sender;
+                    return all;
+                });
+                break;
+            case FrameCodec.ABSENCE:
+                presence.computeIfPresent(key, (name, held) -> keep(held, sessionID -> sessionID != sender));
+                break;
+        }
+    }
+
+    /**
+     * Sends a private message to a session on another host.
+     * @param sessionID the recipient's session ID, which tells its host.
+     * @param envelope the message.
+     * @return false if the session's host is not linked to this one.
+     */
+    boolean sendDirect(int sessionID, Envelope envelope) {
+        int node = SessionIdAllocator.nodeOf(sessionID);
+        return node != nodeId && sendTo(node, direct(envelope, sessionID, ""));
+    }
+
+    /**
+     * Sends a private message to a user on another host, through the owner of the username.
+     * @param username the recipient's username.
+     * @param envelope the message.
+     * @return false if there is no membership to place usernames with, or the owner is not reachable.
+     */
+    boolean sendDirect(String username, Envelope envelope) {
+        if (membership == null) return false;
+        int owner = ring.owner(username);
+        if (owner != nodeId) return sendTo(owner, direct(envelope, 0, username));
+        int[] sessionIDs = presence.get(username);
+        return sessionIDs != null && sendDirect(sessionIDs[0], envelope);
+    }
+
+    /**
+     * Handles a private message or a notice from another host. A message for a session of this host
+     * is delivered and acknowledged to its sender; a message for a username this host owns is sent
+     * on to the user's host.
+     */
+    private void receiveDirect(FrameCodec.Frame frame) throws ProtocolException {
+        ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+        if (payload.remaining() < 6) throw new ProtocolException("Truncated DIRECT frame");
+        byte type = payload.get();
+        int target = payload.getInt();
+        int nameLength = payload.get() & 0xFF;
+        if (payload.remaining() < nameLength) throw new ProtocolException("Truncated DIRECT frame");
+        String name = new String(frame.payload, payload.position(), nameLength, StandardCharsets.UTF_8);
+        payload.position(payload.position() + nameLength);
+        byte[] body = new byte[payload.remaining()];
+        payload.get(body);
+        Envelope envelope = new Envelope(type, frame.sender, body);
+        String recipient = name.isEmpty() ? Integer.toString(target) : name;
+
+        if (target == 0) {
+            int[] sessionIDs = presence.get(name);
+            if (sessionIDs == null) {
+                notice(frame.sender, type, "[System] No user or session ID '" + recipient + "' is connected.");
+                return;
+            }
+            target = sessionIDs[0];
+        }
+        if (SessionIdAllocator.nodeOf(target) != nodeId) {
+            if (!sendDirect(target, envelope)) notice(frame.sender, type, "[System] " + recipient + " cannot be reached.");
+            return;
+        }
+        NodeHandler node = host.sessions().get(target);
+        if (node == null) {
+            notice(frame.sender, type, "[System] No user or session ID '" + recipient + "' is connected.");
+        } else {
+            notice(frame.sender, type, node.deliverPrivate(envelope));
+        }
+    }
+
+    /**
+     * Tells the sender of a private message what became of it. Notices themselves are never answered.
+     * @param sessionID the sender's session ID, 0 for none.
+     * @param about type of the message the notice is about.
+     * @param text the notice.
+     */
+    private void notice(int sessionID, byte about, String text) {
+        if (sessionID == 0 || about != FrameCodec.TEXT) return;
+        Envelope envelope = Envelope.system(text);
+        if (SessionIdAllocator.nodeOf(sessionID) == nodeId) {
+            NodeHandler node = host.sessions().get(sessionID);
+            if (node != null) node.deliver(envelope);
+        } else {
+            sendDirect(sessionID, envelope);
+        }
+    }
+
+    /**
+     * Returns the session IDs of a username that pass a test, or null if none does.
+     * @param held the session IDs currently recorded, never changed once recorded.
+     */
+    private static int[] keep(int[] held, IntPredicate test) {
+        int[] kept = Arrays.stream(held).filter(test).toArray();
+        if (kept.length == held.length) return held;
+        return kept.length == 0 ? null : kept;
+    }
+
+    /**
+     * Encodes a DIRECT frame: the message type, the target session ID (0 to look up the username),
+     * the username and the rendered message.
+     */
+    private static ByteBuffer direct(Envelope envelope, int target, String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 + 1 + name.length + envelope.body.length);
+        payload.put(envelope.type).putInt(target).put((byte) name.length).put(name).put(envelope.body);
+        return FrameCodec.encode(FrameCodec.DIRECT, envelope.sender, payload.array());
+    }
+
+    /**
+     * Queues a frame on the link to a host.
+     * @return false if this host has no link to it.
+     */
+    private boolean sendTo(int node, ByteBuffer frame) {
+        MeshLink link = links.get(node);
+        if (link == null) return false;
+        link.send(frame);
+        return true;
+    }
+
+    /**
+     * Rebuilds the ring after a link came up or went down. The rooms and usernames of this host whose
+     * owner changed are announced to their new owner; rooms and usernames this host no longer owns,
+     * and the state of hosts that are gone, are forgotten. Only runs with membership.
+     */
+    private void rebalance() {
+        if (membership == null) return;
+        ringLock.lock();
+        try {
+            Set<Integer> nodes = new HashSet<>(links.keySet());
+            nodes.add(nodeId);
+            HashRing old = ring;
+            if (old.nodes().equals(nodes)) return;
+            ring = new HashRing(nodes);
+
+            for (Room room : host.rooms().rooms()) {
+                if (old.owner(room.getName()) != ring.owner(room.getName())) roomChanged(room.getName(), true);
+            }
+            for (NodeHandler node : host.sessions().sessions()) {
+                if (old.owner(node.getUsername()) != ring.owner(node.getUsername())) {
+                    sessionChanged(node.getUsername(), node.getSessionID(), true);
+                }
+            }
+            interest.keySet().removeIf(room -> ring.owner(room) != nodeId);
+            for (Set<Integer> hosts : interest.values()) hosts.retainAll(nodes);
+            presence.keySet().removeIf(username -> ring.owner(username) != nodeId);
+            for (String username : presence.keySet()) {
+                presence.computeIfPresent(username,
+                        (name, held) -> keep(held, sessionID -> nodes.contains(SessionIdAllocator.nodeOf(sessionID))));
+            }
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    /**
+     * Called by a link's reader once the link is closed. A link this host dialed is dialed again
+     * later, unless it was replaced by another link to the same host.
+     */
+    void closed(MeshLink link) {
+        if (link.nodeId() >= 0 && links.remove(link.nodeId(), link)) {
+            System.out.println("[Mesh] Link to node " + link.nodeId() + " closed.");
+            rebalance();
+        }
+        if (link.isDialed() && !link.isSuperseded()) redial(link.address());
+    }
+
+    /**
+     * Called by the membership when a host joins the mesh or comes back. Of every two hosts,
+     * the one with the lower node ID dials the other.
+     * @param member the host.
+     */
+    void memberAlive(MeshMembership.Member member) {
+        String address = member.linkAddress();
+        if (nodeId < member.nodeId && !links.containsKey(member.nodeId) && targets.add(address)) {
+            host.execute(() -> dial(address));
+        }
+    }
+
+    /**
+     * Called by the membership when a host is declared dead: stops dialing it and drops its link.
+     * @param member the host.
+     */
+    void memberDead(MeshMembership.Member member) {
+        targets.remove(member.linkAddress());
+        MeshLink link = links.get(member.nodeId);
+        if (link != null) link.close();
+    }
+
+    /**
+     * Parses a "host:port" address.
+     * @throws IllegalArgumentException if the address has no port or the port is not a number.
+     */
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Missing port in " + address);
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Accept loop of the link port. The handshake of every link runs on its own thread.
+     */
+    private void acceptLinks() {
+        try {
+            while (!listener.isClosed()) {
+                Socket socket = listener.accept();
+                host.execute(() -> open(socket, null));
+            }
+        } catch (IOException e) {
+            if (running) System.out.println("[Mesh] Link port closed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Connects to a peer, retrying later if it cannot be reached.
+     * @param address the peer's link address, as "host:port".
+     */
+    private void dial(String address) {
+        if (!running || !targets.contains(address)) return;
+        Socket socket = new Socket();
+        try {
+            socket.connect(parseAddress(address), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException | IllegalArgumentException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            redial(address);
+            return;
+        }
+        open(socket, address);
+    }
+
+    /**
+     * Schedules another attempt to connect to a peer.
+     */
+    private void redial(String address) {
+        if (running && targets.contains(address)) {
+            host.timer().schedule(() -> host.execute(() -> dial(address)), REDIAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs the handshake of a new link and starts it.
+     * @param socket the connection.
+     * @param address the dialed address, or null for an accepted link.
+     */
+    private void open(Socket socket, String address) {
+        MeshLink link;
+        try {
+            link = new MeshLink(socket, address, this);
+            int remote = link.handshake(nodeId, host.config().handshakeTimeoutMillis);
+            if (remote == nodeId) {
+                System.out.println("[Mesh] Refusing link from a host with the same node ID " + remote + ".");
+                link.close();
+                return;
+            }
+        } catch (IOException e) {
+            if (e instanceof ProtocolException) System.out.println("[Mesh] Refusing link: " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            if (address != null) redial(address);
+            return;
+        }
+        if (register(link)) {
+            System.out.println("[Mesh] Linked to node " + link.nodeId() + ".");
+            link.start(host);
+            rebalance();
+        } else {
+            link.supersede();
+        }
+    }
+
+    /**
+     * Adds a link, keeping a single link per host. When both hosts dial each other at once,
+     * each end keeps the link dialed by the host with the lower node ID, so both ends agree.
+     * @return false if the new link must be closed in favour of the existing one.
+     */
+    private boolean register(MeshLink link) {
+        MeshLink[] replaced = new MeshLink[1];
+        MeshLink kept = links.compute(link.nodeId(), (id, existing) -> {
+            if (existing != null && isPreferred(existing) && !isPreferred(link)) return existing;
+            replaced[0] = existing;
+            return link;
+        });
+        if (replaced[0] != null) replaced[0].supersede();
+        return kept == link;
+    }
+
+    /**
+     * Tells whether a link was dialed by the host with the lower node ID.
+     */
+    private boolean isPreferred(MeshLink link) {
+        return link.isDialed() == (nodeId < link.nodeId());
+    }
+
+    /**
+     * A bounded set of message IDs that forgets the oldest ID once full.
+     */
+    private static final class SeenSet {
+
+        private final ReentrantLock lock = new ReentrantLock();    // Guards the set and the ring.
+        private final HashSet<Long> ids = new HashSet<>();         // Remembered IDs.
+        private final long[] order;                                // Remembered IDs, oldest first from next.
+        private int next;                                          // Slot of the oldest ID once the ring is full.
+
+        /**
+         * Creates an empty set.
+         * @param capacity number of IDs remembered.
+         */
+        SeenSet(int capacity) {
+            this.order = new long[capacity];
+        }
+
+        /**
+         * Remembers an ID.
+         * @return false if the ID was already remembered.
+         */
+        boolean add(long id) {
+            lock.lock();
+            try {
+                if (!ids.add(id)) return false;
+                if (ids.size() > order.length) ids.remove(order[next]);
+                order[next] = id;
+                next = (next + 1) % order.length;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.networkmesh.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * MessageLog is a durable, append-only record of every room message that passes through a host.
+ * Appending only puts the message on a lock-free queue; a single appender thread writes queued
+ * records into memory-mapped segment files and forces each batch to disk with a single call
+ * (group commit), so the fan-out path never waits for the disk.
+ *
+ * A segment is a preallocated file named after the sequence number of its first record. Each record is
+ * a 4-byte length, a CRC-32 of the rest, the sequence number, a timestamp, the message type, the sender,
+ * the room name and the rendered message. A zero length marks the unused end of a segment.
+ * Records appear in the order they were queued, which is sequence order since NodeHost numbers and
+ * queues messages under one lock.
+ * If the appender fails, the log stops for good: the failure is reported, and from then on every
+ * record is counted as dropped instead of piling up in the queue.
+ */
+public class MessageLog implements Runnable {
+
+    private static final int QUEUE_CAPACITY = 1 << 20;             // Records that may wait for the appender.
+    private static final int BATCH = 4096;                         // Records written per forced batch at most.
+    private static final int FIXED_SIZE = 4 + 8 + 8 + 1 + 4 + 1;   // CRC, sequence, timestamp, type, sender and room length.
+
+    private final Path dir;                                        // Directory holding the segments.
+    private final int segmentBytes;                                // Size of a segment file.
+    private final boolean sync;                                    // Force every batch to disk.
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<>(); // Records waiting for the appender.
+    private final AtomicInteger queued = new AtomicInteger();      // Number of records in the queue.
+    private final AtomicLong dropped = new AtomicLong();           // Records discarded because the queue was full.
+    private final CRC32 crc = new CRC32();                         // Checksum of the record being written.
+    private final long lastSequence;                               // Highest sequence number found on disk at startup.
+    private final Thread appender;                                 // Thread writing the records.
+    private FileChannel file;                                      // Current segment.
+    private MappedByteBuffer segment;                              // Current segment, mapped.
+    private volatile boolean waiting;                              // The appender is parked on an empty queue.
+    private volatile boolean running = true;                       // Cleared to stop after draining the queue.
+    private volatile long appended;                                // Records written so far.
+    private volatile long batches;                                 // Batches written so far.
+    private volatile Throwable failure;                            // Why the appender stopped, or null while it works.
+
+    /**
+     * Opens the log in a directory, creating it if needed, and starts the appender thread.
+     * The newest existing segment is scanned for the highest sequence number so that numbering carries on
+     * after a restart; new records always go to a new segment.
+     * @param dir directory of the segments.
+     * @param segmentBytes size of each segment file.
+     * @param sync if true, every batch is forced to disk before the next one is written.
+     */
+    public static MessageLog open(Path dir, int segmentBytes, boolean sync) throws IOException {
+        MessageLog log = new MessageLog(dir, segmentBytes, sync);
+        log.appender.start();                  // Only once the log is fully constructed.
+        return log;
+    }
+
+    /**
+     * Creates the log and its appender thread without starting it; see {@link #open(Path, int, boolean)}.
+     */
+    private MessageLog(Path dir, int segmentBytes, boolean sync) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        this.sync = sync;
+        this.lastSequence = recover();
+        this.appender = new Thread(this, "message-log");
+        this.appender.setDaemon(true);
+    }
+
+    /**
+     * Returns the highest sequence number found on disk when the log was opened, 0 if none.
+     */
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Queues a room message for the log. Never blocks; if the appender is too far behind, the record
+     * is dropped and counted instead.
+     * @param room name of the room.
+     * @param envelope the message, with its sequence number set.
+     */
+    void append(String room, Envelope envelope) {
+        if (failure != null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (queued.incrementAndGet() > QUEUE_CAPACITY) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Record(System.currentTimeMillis(), room, envelope));
+        if (waiting) LockSupport.unpark(appender);
+    }
+
+    /**
+     * Writes what is still queued, forces it to disk and stops the appender.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(appender);
+        try {
+            appender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of records written so far.
+     */
+    public long appendedRecords() {
+        return appended;
+    }
+
+    /**
+     * Returns the number of records dropped because the appender could not keep up.
+     */
+    public long droppedRecords() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns what stopped the appender, or null if it is still writing records.
+     */
+    public Throwable failure() {
+        return failure;
+    }
+
+    /**
+     * Returns the number of batches written so far; appended records divided by batches is the
+     * average group-commit size.
+     */
+    public long batches() {
+        return batches;
+    }
+
+    /**
+     * Appender loop: writes queued records in batches and forces every batch, parking while the queue is empty.
+     * Any failure stops the log; see {@link #fail(Throwable)}.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Record record = queue.poll();
+                if (record == null) {
+                    if (!running) break;
+                    waiting = true;
+                    if (queue.isEmpty() && running) LockSupport.park(this);
+                    waiting = false;
+                    continue;
+                }
+                int count = 0;
+                do {
+                    write(record);
+                    count++;
+                } while (count < BATCH && (record = queue.poll()) != null);
+                queued.addAndGet(-count);
+                if (sync && segment != null) segment.force();
+                appended += count;
+                batches++;
+            }
+            if (segment != null) segment.force();
+            if (file != null) file.close();
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops the log after the appender failed: reports the failure, counts the unfinished batch and what is
+     * still queued as dropped, and closes the current segment. Later records are dropped by append().
+     */
+    private void fail(Throwable e) {
+        failure = e;
+        System.out.println("[Server] Message log stopped, messages are no longer logged: " + e);
+        e.printStackTrace();
+        queue.clear();
+        dropped.addAndGet(queued.getAndSet(0));                    // Includes the batch that was being written.
+        try {
+            if (file != null) file.close();
+        } catch (IOException closing) {
+            e.addSuppressed(closing);
+        }
+    }
+
+    /**
+     * Writes one record into the current segment, starting a new segment if it does not fit.
+     */
+    private void write(Record record) throws IOException {
+        byte[] room = record.room.getBytes(StandardCharsets.UTF_8);
+        byte[] body = record.envelope.body;
+        int length = FIXED_SIZE + room.length + body.length;
+        long seq = record.envelope.seq;
+        if (4 + length + 4 > segmentBytes) {
+            System.out.println("[Server] Message " + seq + " is larger than a log segment, not logged.");
+            return;
+        }
+        if (segment == null || segment.remaining() < 4 + length + 4) roll(seq);  // Keep room for the end marker.
+
+        int start = segment.position();
+        segment.putInt(length).putInt(0).putLong(seq).putLong(record.timestamp)
+                .put(record.envelope.type).putInt(record.envelope.sender).put((byte) room.length).put(room).put(body);
+        crc.reset();
+        crc.update(segment.slice(start + 8, length - 4));
+        segment.putInt(start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Closes the current segment and starts a new one named after the next record's sequence number.
+     */
+    private void roll(long firstSequence) throws IOException {
+        if (segment != null) {
+            segment.force();
+            file.close();
+        }
+        Path path = dir.resolve(String.format("%020d.log", firstSequence));
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+
+    /**
+     * Finds the highest sequence number on disk. Segments are named after their first record, so only
+     * the newest one is scanned, up to the end marker or to the first record whose checksum does not
+     * match (a write cut short by a crash).
+     */
+    private long recover() throws IOException {
+        Optional<Path> newest;
+        try (Stream<Path> files = Files.list(dir)) {
+            newest = files.filter(path -> path.getFileName().toString().endsWith(".log")).max(Path::compareTo);
+        }
+        if (newest.isEmpty()) return 0;
+        String name = newest.get().getFileName().toString();
+        long highest = Long.parseLong(name.substring(0, name.length() - 4)) - 1;
+
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(newest.get()));
+        CRC32 check = new CRC32();
+        while (in.remaining() >= 4 + FIXED_SIZE) {
+            int start = in.position();
+            int length = in.getInt();
+            if (length < FIXED_SIZE || length > in.remaining()) break;
+            int expected = in.getInt();
+            check.reset();
+            check.update(in.slice(start + 8, length - 4));
+            if ((int) check.getValue() != expected) break;
+            highest = Math.max(highest, in.getLong());
+            in.position(start + 4 + length);
+        }
+        return highest;
+    }
+
+    /**
+     * A message waiting to be written.
+     */
+    private static final class Record {
+
+        final long timestamp;                                      // When it was published, in epoch milliseconds.
+        final String room;                                         // Room it was published in.
+        final Envelope envelope;                                   // The message itself, with its sequence number.
+
+        /**
+         * Creates a record.
+         */
+        Record(long timestamp, String room, Envelope envelope) {
+            this.timestamp = timestamp;
+            this.room = room;
+            this.envelope = envelope;
+        }
+    }
+}
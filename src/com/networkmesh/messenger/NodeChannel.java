@@ -0,0 +1,263 @@
+package com.networkmesh.messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * NodeChannel is the non-blocking side of a single client connection served by a NodeLoop.
+ * It splits incoming bytes into lines or frames for its NodeHandler and drains the handler's outbox
+ * whenever the socket is ready to take more.
+ */
+class NodeChannel {
+
+    private static final int READ_BYTES = 16 * 1024;                        // Size of the buffer each read is made into.
+
+    private final SocketChannel channel;                                    // Non-blocking channel to the client.
+    private final NodeLoop loop;                                            // Event loop that owns this channel.
+    private final NodeHandler handler;                                      // Chat logic for this client.
+    private final int maxLineBytes;                                         // Longest line accepted from the client.
+    private final BufferPool buffers;                                       // Lends the buffers reads are made into.
+    private final Outbox outbox;                                            // Output waiting to be written.
+    private final ByteBuffer[] batch = new ByteBuffer[16];                  // Views of the messages being written together.
+    private int batched;                                                    // Number of views in the batch.
+    private long flushAt;                                                   // When a delayed flush is due, in System.nanoTime().
+    private boolean flushDelayed;                                           // True while the loop holds back this channel's output.
+    private SelectionKey key;                                               // Registration with the loop's selector.
+    private boolean negotiated;                                             // Set once the first byte has been seen.
+    private FrameCodec.Decoder frames;                                      // Frame decoder, if the client speaks frames.
+    private LineDecoder lines;                                              // Line decoder, if the client speaks lines.
+    private volatile boolean closing;                                       // Close once the pending output is written.
+
+    /**
+     * Creates the connection state for a freshly accepted channel.
+     * @param channel the client's channel.
+     * @param loop the event loop that owns the channel.
+     * @param host reference to the server, used to assign a session ID.
+     */
+    NodeChannel(SocketChannel channel, NodeLoop loop, NodeHost host) {
+        this.channel = channel;
+        this.loop = loop;
+        this.outbox = new Outbox(host.config(), host.metrics(), () -> loop.requestWrite(this));
+        this.maxLineBytes = host.config().maxLineBytes;
+        this.buffers = host.buffers();
+        this.handler = new NodeHandler(this, host);
+    }
+
+    /**
+     * Returns the event loop that owns this channel.
+     */
+    NodeLoop loop() {
+        return loop;
+    }
+
+    /**
+     * Remembers the selection key once the channel is registered.
+     */
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the queue the handler puts this client's output into.
+     */
+    Outbox outbox() {
+        return outbox;
+    }
+
+    /**
+     * Tells whether the client connected from the server's own machine.
+     */
+    boolean isLocal() {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the channel once everything queued so far has been written.
+     */
+    void closeAfterFlush() {
+        closing = true;
+        outbox.close();
+        loop.requestWrite(this);
+    }
+
+    /**
+     * Reads what the client sent and passes every complete line or frame to the handler.
+     * The first byte of the connection decides which protocol the client speaks.
+     * The read buffer is borrowed from the pool for this call only: the decoders keep what they need
+     * of an incomplete line or frame, so an idle connection holds no read buffer.
+     * Called on the loop thread.
+     */
+    void onReadable() {
+        ByteBuffer readBuffer = buffers.acquire(READ_BYTES);
+        try {
+            onReadable(readBuffer);
+        } finally {
+            buffers.release(readBuffer);
+        }
+    }
+
+    /**
+     * Reads into a borrowed buffer and passes what arrived to the decoder.
+     */
+    private void onReadable(ByteBuffer readBuffer) {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            handler.disconnected();
+            return;
+        }
+
+        readBuffer.flip();
+        if (!negotiated && readBuffer.hasRemaining()) {
+            negotiated = true;
+            if (readBuffer.get(0) == FrameCodec.MAGIC) {
+                readBuffer.get();
+                frames = new FrameCodec.Decoder();
+                handler.useFrames();
+            } else {
+                lines = new LineDecoder(maxLineBytes, buffers);
+            }
+        }
+        if (frames != null) {
+            readFrames(readBuffer);
+        } else {
+            readLines(readBuffer);
+        }
+    }
+
+    /**
+     * Passes every complete frame in the read buffer to the handler.
+     */
+    private void readFrames(ByteBuffer readBuffer) {
+        try {
+            FrameCodec.Frame frame;
+            while (!closing && channel.isOpen() && (frame = frames.next(readBuffer)) != null) {
+                handler.receive(frame);
+            }
+        } catch (IOException e) {
+            handler.disconnected();            // Malformed frame.
+        }
+    }
+
+    /**
+     * Passes every complete line in the read buffer to the handler.
+     */
+    private void readLines(ByteBuffer readBuffer) {
+        try {
+            String text;
+            while (!closing && channel.isOpen() && (text = lines.next(readBuffer)) != null) {
+                handler.receive(text);
+            }
+        } catch (ProtocolException e) {
+            handler.disconnected();            // Line too long.
+        }
+    }
+
+    /**
+     * Tells how long the loop may hold back this channel's output so that more messages can share
+     * one write. Called on the loop thread.
+     * @param maxDelayNanos how long the oldest message may wait.
+     * @param maxBytes number of queued bytes that are written without waiting.
+     * @return the remaining wait in nanoseconds, 0 to write now.
+     */
+    long flushDelay(long maxDelayNanos, long maxBytes) {
+        if (closing || batched > 0) return 0;
+        return outbox.flushDelay(maxDelayNanos, maxBytes);
+    }
+
+    /**
+     * Returns when the delayed flush of this channel is due. Only used by the loop thread.
+     */
+    long flushAt() {
+        return flushAt;
+    }
+
+    /**
+     * Tells whether the loop is holding back this channel's output. Only used by the loop thread.
+     */
+    boolean isFlushDelayed() {
+        return flushDelayed;
+    }
+
+    /**
+     * Marks this channel's output as held back until the given time, or releases it. Only used by the loop thread.
+     * @param delayed true to hold the output back.
+     * @param time when the delayed flush is due, in System.nanoTime().
+     */
+    void delayFlush(boolean delayed, long time) {
+        this.flushDelayed = delayed;
+        this.flushAt = time;
+    }
+
+    /**
+     * Writes as much queued output as the socket accepts and keeps OP_WRITE
+     * registered while anything is left. Up to 16 queued messages go out in a single
+     * gathering write. Called on the loop thread.
+     */
+    void onWritable() {
+        if (key == null || !key.isValid()) {
+            if (lines != null) lines.release();    // Closed: the buffer of an unfinished line goes back to the pool.
+            return;
+        }
+        try {
+            while (true) {
+                ByteBuffer next;
+                while (batched < batch.length && (next = nextView()) != null) batch[batched++] = next;
+                if (batched == 0) break;
+
+                channel.write(batch, 0, batched);
+                int written = 0;
+                while (written < batched && !batch[written].hasRemaining()) written++;
+                outbox.flushed(written);
+                System.arraycopy(batch, written, batch, 0, batched - written);
+                Arrays.fill(batch, batched - written, batched, null);
+                batched -= written;
+                if (batched > 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (closing && outbox.isDrained()) close();
+        } catch (IOException e) {
+            close();
+            handler.disconnected();
+        }
+    }
+
+    /**
+     * Takes the next message from the outbox as a private view, since the buffer itself
+     * is shared with every other recipient of the same broadcast.
+     * @return a view of the message, or null if the outbox is empty.
+     */
+    private ByteBuffer nextView() {
+        ByteBuffer shared = outbox.poll();
+        return shared == null ? null : shared.duplicate();
+    }
+
+    /**
+     * Closes the channel immediately. Safe to call from any thread. The loop is asked to visit the channel
+     * once more, so that it returns what the channel still borrows from the pool on its own thread.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        loop.requestWrite(this);
+    }
+}
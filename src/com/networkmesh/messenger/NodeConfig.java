@@ -0,0 +1,224 @@
+package com.networkmesh.messenger;
+
+/**
+ * NodeConfig holds the tunable settings of a NodeHost.
+ * Every setting has a default and can be overridden with a system property, e.g.
+ * {@code -Dmesh.slowConsumer.policy=DISCONNECT}.
+ */
+public class NodeConfig {
+
+    int nodeId = 0;                                                      // ID of this host in the mesh, encoded in session IDs.
+    int clientPort = 8080;                                               // Port clients connect to.
+    int linkPort = 0;                                                    // Port other hosts of the mesh connect to, 0 for none.
+    String peers = "";                                                   // Hosts to link to, as "host:port,host:port".
+    long gossipIntervalMillis = 1000;                                    // Length of a membership protocol period.
+    long suspectTimeoutMillis = 5000;                                    // Time a suspected host has to prove it is alive.
+    int historyDepth = 50;                                               // Recent messages per room replayed to joining clients.
+    String logDir = "";                                                  // Directory of the message log, empty for none.
+    int logSegmentBytes = 64 * 1024 * 1024;                              // Size of a message log segment file.
+    boolean logSync = true;                                              // Force every batch of log records to disk.
+    long resumeGraceMillis = 60_000;                                     // How long a dropped binary client may take to resume, 0 for never.
+    int resumeRetention = 4096;                                          // Recent messages kept for replay to resumed sessions.
+    long statsIntervalMillis = 60_000;                                   // How often the server prints its statistics, 0 for never.
+    long handshakeTimeoutMillis = 10_000;                                // Time a new client has to send its username.
+    int maxLineBytes = 8 * 1024;                                         // Longest line accepted from a text client.
+    long bufferPoolBytes = 64L * 1024 * 1024;                            // Direct memory the socket buffer pool may allocate.
+    long sessionMessageRate = 20;                                        // Chat messages a client may send per second, 0 for no limit.
+    long sessionByteRate = 64 * 1024;                                    // Bytes of chat a client may send per second, 0 for no limit.
+    long roomMessageRate = 1000;                                         // Chat messages a room takes per second, 0 for no limit.
+    long roomByteRate = 1024 * 1024;                                     // Bytes of chat a room takes per second, 0 for no limit.
+    long limitBurstMillis = 2000;                                        // Milliseconds' worth of a rate that may be sent at once.
+    int outboxCapacity = 1024;                                           // Messages that may wait for a slow client.
+    SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST; // What to do when a client falls behind.
+    long maxQueuedBytes = 1024 * 1024;                                   // Bytes that may wait for a slow client.
+    long maxLagMillis = 30_000;                                          // How long the oldest queued message may wait.
+    long coalesceDelayMicros = 1000;                                     // How long a message may wait for others to share its write.
+    int coalesceBytes = 16 * 1024;                                       // Bytes that are written at once without waiting.
+
+    /**
+     * Creates a configuration with the default settings.
+     */
+    public NodeConfig() {
+    }
+
+    /**
+     * Creates a configuration from the "mesh.*" system properties, using defaults for the ones not set.
+     */
+    public static NodeConfig fromSystemProperties() {
+        NodeConfig config = new NodeConfig();
+        config.nodeId = Integer.getInteger("mesh.nodeId", config.nodeId);
+        config.clientPort = Integer.getInteger("mesh.clientPort", config.clientPort);
+        config.linkPort = Integer.getInteger("mesh.linkPort", config.linkPort);
+        config.peers = System.getProperty("mesh.peers", config.peers);
+        config.gossipIntervalMillis = Long.getLong("mesh.gossip.intervalMillis", config.gossipIntervalMillis);
+        config.suspectTimeoutMillis = Long.getLong("mesh.gossip.suspectMillis", config.suspectTimeoutMillis);
+        config.historyDepth = Integer.getInteger("mesh.history.depth", config.historyDepth);
+        config.logDir = System.getProperty("mesh.log.dir", config.logDir);
+        config.logSegmentBytes = Integer.getInteger("mesh.log.segmentBytes", config.logSegmentBytes);
+        config.logSync = Boolean.parseBoolean(System.getProperty("mesh.log.sync", String.valueOf(config.logSync)));
+        config.resumeGraceMillis = Long.getLong("mesh.resume.graceMillis", config.resumeGraceMillis);
+        config.resumeRetention = Integer.getInteger("mesh.resume.retention", config.resumeRetention);
+        config.statsIntervalMillis = Long.getLong("mesh.stats.intervalMillis", config.statsIntervalMillis);
+        config.handshakeTimeoutMillis = Long.getLong("mesh.handshake.timeoutMillis", config.handshakeTimeoutMillis);
+        config.maxLineBytes = Integer.getInteger("mesh.line.maxBytes", config.maxLineBytes);
+        config.bufferPoolBytes = Long.getLong("mesh.buffers.maxBytes", config.bufferPoolBytes);
+        config.sessionMessageRate = Long.getLong("mesh.limit.session.messages", config.sessionMessageRate);
+        config.sessionByteRate = Long.getLong("mesh.limit.session.bytes", config.sessionByteRate);
+        config.roomMessageRate = Long.getLong("mesh.limit.room.messages", config.roomMessageRate);
+        config.roomByteRate = Long.getLong("mesh.limit.room.bytes", config.roomByteRate);
+        config.limitBurstMillis = Long.getLong("mesh.limit.burstMillis", config.limitBurstMillis);
+        config.outboxCapacity = Integer.getInteger("mesh.outbox.capacity", config.outboxCapacity);
+        config.slowConsumerPolicy = SlowConsumerPolicy.valueOf(
+                System.getProperty("mesh.slowConsumer.policy", config.slowConsumerPolicy.name()).toUpperCase());
+        config.maxQueuedBytes = Long.getLong("mesh.slowConsumer.maxBytes", config.maxQueuedBytes);
+        config.maxLagMillis = Long.getLong("mesh.slowConsumer.maxLagMillis", config.maxLagMillis);
+        config.coalesceDelayMicros = Long.getLong("mesh.coalesce.delayMicros", config.coalesceDelayMicros);
+        config.coalesceBytes = Integer.getInteger("mesh.coalesce.bytes", config.coalesceBytes);
+        return config;
+    }
+
+    /**
+     * Sets the ID of this host in the mesh. Every host of a mesh needs its own ID.
+     * @param nodeId a number between 0 and {@link SessionIdAllocator#MAX_NODE_ID}.
+     * @return this configuration.
+     */
+    public NodeConfig nodeId(int nodeId) {
+        this.nodeId = nodeId;
+        return this;
+    }
+
+    /**
+     * Sets how this host joins a mesh of hosts.
+     * @param linkPort port other hosts connect to, or 0 to only connect out.
+     * @param peers hosts to connect to, as a comma-separated list of "host:port" link addresses.
+     * @return this configuration.
+     */
+    public NodeConfig mesh(int linkPort, String peers) {
+        this.linkPort = linkPort;
+        this.peers = peers;
+        return this;
+    }
+
+    /**
+     * Sets the timing of the membership protocol.
+     * @param intervalMillis how often each host pings another one.
+     * @param suspectMillis how long a host that stopped answering has to prove it is alive before it is declared dead.
+     * @return this configuration.
+     */
+    public NodeConfig gossip(long intervalMillis, long suspectMillis) {
+        this.gossipIntervalMillis = intervalMillis;
+        this.suspectTimeoutMillis = suspectMillis;
+        return this;
+    }
+
+    /**
+     * Sets how many recent messages of a room are replayed to a client that joins it.
+     * @param depth number of messages, 0 to turn history off.
+     * @return this configuration.
+     */
+    public NodeConfig history(int depth) {
+        this.historyDepth = depth;
+        return this;
+    }
+
+    /**
+     * Turns on the message log.
+     * @param dir directory of the log segments.
+     * @param segmentBytes size of each segment file.
+     * @param sync if true, every batch of records is forced to disk.
+     * @return this configuration.
+     */
+    public NodeConfig log(String dir, int segmentBytes, boolean sync) {
+        this.logDir = dir;
+        this.logSegmentBytes = segmentBytes;
+        this.logSync = sync;
+        return this;
+    }
+
+    /**
+     * Sets how binary clients whose connection dropped can resume their session.
+     * @param graceMillis how long the session waits for its client, 0 to end it right away.
+     * @param retention number of recent messages the server keeps to replay what a resumed client missed.
+     * @return this configuration.
+     */
+    public NodeConfig resume(long graceMillis, int retention) {
+        this.resumeGraceMillis = graceMillis;
+        this.resumeRetention = retention;
+        return this;
+    }
+
+    /**
+     * Sets how often the server prints a line of statistics about the last interval.
+     * @param intervalMillis the interval, 0 to never print them.
+     * @return this configuration.
+     */
+    public NodeConfig stats(long intervalMillis) {
+        this.statsIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    /**
+     * Sets the longest line a text client may send. A client that sends a longer one is disconnected.
+     * @param maxBytes longest line in bytes, without its newline. Only a line still waiting for its newline takes
+     *                 memory, a pooled buffer that grows with it up to this size.
+     * @return this configuration.
+     */
+    public NodeConfig maxLine(int maxBytes) {
+        this.maxLineBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Sets how much direct memory the pool of socket buffers may allocate. Past it, buffers are plain heap buffers.
+     * @param maxBytes the limit, 0 to never use direct buffers.
+     * @return this configuration.
+     */
+    public NodeConfig buffers(long maxBytes) {
+        this.bufferPoolBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Sets how fast clients may send chat messages. Messages over a limit are dropped before they reach the room.
+     * @param sessionMessages messages per second for each client, 0 for no limit.
+     * @param sessionBytes bytes per second for each client, 0 for no limit.
+     * @param roomMessages messages per second for each room on this host, 0 for no limit.
+     * @param roomBytes bytes per second for each room on this host, 0 for no limit.
+     * @param burstMillis how many milliseconds' worth of a rate may be sent at once after a quiet spell.
+     * @return this configuration.
+     */
+    public NodeConfig limits(long sessionMessages, long sessionBytes, long roomMessages, long roomBytes, long burstMillis) {
+        this.sessionMessageRate = sessionMessages;
+        this.sessionByteRate = sessionBytes;
+        this.roomMessageRate = roomMessages;
+        this.roomByteRate = roomBytes;
+        this.limitBurstMillis = burstMillis;
+        return this;
+    }
+
+    /**
+     * Sets how outgoing messages are batched into a single write.
+     * @param delayMicros how long a message may wait for others to join it; 0 writes whatever is queued right away.
+     * @param bytes once this many bytes are queued they are written without waiting further; 0 turns coalescing off.
+     * @return this configuration.
+     */
+    public NodeConfig coalesce(long delayMicros, int bytes) {
+        this.coalesceDelayMicros = delayMicros;
+        this.coalesceBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Sets how a client that falls behind is treated.
+     * @param policy what to do once a limit is exceeded.
+     * @param maxQueuedBytes bytes that may wait in the client's outbox.
+     * @param maxLagMillis how long the oldest queued message may wait before the policy applies.
+     * @return this configuration.
+     */
+    public NodeConfig slowConsumer(SlowConsumerPolicy policy, long maxQueuedBytes, long maxLagMillis) {
+        this.slowConsumerPolicy = policy;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxLagMillis = maxLagMillis;
+        return this;
+    }
+}
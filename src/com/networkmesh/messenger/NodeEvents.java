@@ -0,0 +1,119 @@
+package com.networkmesh.messenger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * NodeEvents holds the JDK Flight Recorder events of the server, so that a stall seen in production can be
+ * lined up with the GC, lock and socket events JFR records anyway.
+ * Every event is disabled by default. While disabled, creating one is optimized away and shouldCommit()
+ * is a constant false, so the fields are only filled in when someone is recording. Enable them in a
+ * recording's settings, for example
+ * {@code -XX:StartFlightRecording:+com.networkmesh.messenger.Broadcast#enabled=true,+com.networkmesh.messenger.Broadcast#threshold=1ms}.
+ */
+final class NodeEvents {
+
+    private NodeEvents() {
+    }
+
+    /**
+     * A client connection accepted by the server; its duration is the time taken to hand it to its thread or event loop.
+     */
+    @Name("com.networkmesh.messenger.Accept")
+    @Label("Accept")
+    @Category({"Network Mesh", "Messenger"})
+    @Description("A client connection accepted and handed to its thread or event loop")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Accept extends Event {
+
+        @Label("Remote Address")
+        String remoteAddress;                                      // Address of the client.
+    }
+
+    /**
+     * The server side of a client's handshake: registering the session, announcing it and replaying what the client missed,
+     * or the handshake timing out.
+     */
+    @Name("com.networkmesh.messenger.Handshake")
+    @Label("Handshake")
+    @Category({"Network Mesh", "Messenger"})
+    @Description("A client started or resumed its session, or failed to before the handshake timed out")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Handshake extends Event {
+
+        @Label("Username")
+        String username;                                           // Username sent by the client, null if none arrived.
+
+        @Label("Session ID")
+        int sessionID;                                             // Session ID given to the client, 0 if none.
+
+        @Label("Binary")
+        @Description("The client speaks the binary frame protocol")
+        boolean framed;                                            // True for a binary client.
+
+        @Label("Outcome")
+        String outcome;                                            // "joined", "resumed", "rejoined" or "timed out".
+    }
+
+    /**
+     * One message fanned out to the members of a room on this server.
+     */
+    @Name("com.networkmesh.messenger.Broadcast")
+    @Label("Broadcast")
+    @Category({"Network Mesh", "Messenger"})
+    @Description("A message published to a room and queued for its members on this server")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Broadcast extends Event {
+
+        @Label("Room")
+        String room;                                               // Room the message was published in.
+
+        @Label("Sequence")
+        long seq;                                                  // Host sequence number of the message.
+
+        @Label("Recipients")
+        int recipients;                                            // Members the message was queued for.
+
+        @Label("Message Size")
+        @DataAmount
+        int bytes;                                                 // Size of the rendered message.
+    }
+
+    /**
+     * A connection closed by terminateConnection, with what became of its session.
+     */
+    @Name("com.networkmesh.messenger.Disconnect")
+    @Label("Disconnect")
+    @Category({"Network Mesh", "Messenger"})
+    @Description("A client connection closed, and its session ended or parked")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Disconnect extends Event {
+
+        @Label("Username")
+        String username;                                           // Username of the client, null before the handshake.
+
+        @Label("Session ID")
+        int sessionID;                                             // Session ID of the client, 0 before the handshake.
+
+        @Label("Parked")
+        @Description("The session was kept so that the client can resume it")
+        boolean parked;                                            // True if the session was parked instead of ended.
+
+        @Label("Queued Messages")
+        int queuedMessages;                                        // Messages still waiting to be written to the client.
+
+        @Label("Queued Bytes")
+        @DataAmount
+        long queuedBytes;                                          // Bytes still waiting to be written to the client.
+    }
+}
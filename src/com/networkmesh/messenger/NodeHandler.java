@@ -1,64 +1,124 @@
 package com.networkmesh.messenger;
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * NodeHandler manages communication with a single connected client.
  * It runs on its own thread, reads messages from the client, and broadcasts them to all other clients.
+ * Messages for the client are queued in its Outbox and written by a separate writer, so broadcasting
+ * never blocks on a slow recipient.
+ * When the server runs in selector mode, the handler is driven by a NodeLoop through a NodeChannel instead.
  */
 public class NodeHandler implements Runnable {
 
-    
-    public static List<NodeHandler> activeNodes = new CopyOnWriteArrayList<>(); // List of active clients in session. 
+    private static final int INPUT_BUFFER_BYTES = 512;    // Read-ahead of a blocking binary client; frame payloads are read in bulk.
 
     private Socket socket;                 // Socket for communicating with this client.
-    private BufferedReader input;          // Read messages from the client.
-    private BufferedWriter output;         // Send messages to the client.
+    private PushbackInputStream input;     // Read messages from the client; unbuffered, so text is only buffered by its line decoder.
+    private WritableByteChannel output;    // Send messages to the client, used by the writer only.
+    private Outbox outbox;                 // Messages waiting to be sent to the client.
+    private NodeChannel channel;           // Non-blocking connection, when served by a NodeLoop.
+    private NodeHost host;                 // Server that assigns session IDs and keeps the session registry.
     private String username;               // Client's username. 
+    private byte[] prefix;                 // The "[username] " prefix of this client's chat lines, in UTF-8.
+    private boolean framed;                // True if the client speaks the binary frame protocol.
+    private volatile Room room;            // Room the client's messages go to.
     private int sessionID;                 // Unique session ID assigned by the server.
+    private long token;                    // Token that resumes this session after a dropped connection, 0 for none.
+    private volatile boolean leaving;      // The client said goodbye or was dropped, so its session is not kept.
+    private volatile boolean closed;       // The connection is closing; set before the session is removed.
+    private RateLimiter limiter;           // Limits the chat the client sends, or null for none.
+    private boolean throttled;             // The client was told its messages are being dropped; reset once one passes.
+    private ScheduledFuture<?> handshakeTimer; // Closes the connection if the username does not arrive in time.
+    private volatile long replayedUpTo;    // Published messages up to this sequence number reach the client through a replay.
+    private volatile boolean replaysAll;   // The replay covers every kind of message, not only chat.
 
     /**
-     * Creates a new NodeHandler for a client and adds it to the list of active nodes.
+     * Creates a new NodeHandler for a client. The constructor does no blocking I/O, so it is safe
+     * to call on the accept thread; the handshake happens at the start of {@link #run()}.
      * @param socket the client's socket used for communication.
      * @param host reference to the server, used to assign a session ID.
      */
     public NodeHandler(Socket socket, NodeHost host) {
         try {
             this.socket = socket;
-            this.output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.username = input.readLine();                  // First line is expected to be the username.
-            this.sessionID = host.generateSessionID();         // Generate a unique session ID.
-            activeNodes.add(this);                             // Add this handler to the active list.
-
-            broadcast("[System] " + username + " just joined the chat. ID: " + sessionID, true);
-
-            output.write("Welcome to the chat " + username + "! Your session ID is: " + sessionID);
-            output.newLine();
-            output.flush();
+            this.host = host;
+            this.output = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+            this.input = new PushbackInputStream(socket.getInputStream(), 1);
+            this.outbox = new Outbox(host.config(), host.metrics(), null);
+            this.limiter = RateLimiter.forSession(host.config());
         } catch (IOException e) {
-            terminateConnection();
+            closeSocket();
         }
     }
 
+    /**
+     * Creates a NodeHandler for a non-blocking connection. The username arrives later
+     * as the first line passed to {@link #receive(String)} or the HELLO frame passed to {@link #receive(FrameCodec.Frame)}.
+     * @param channel the client's connection on an event loop.
+     * @param host reference to the server, used to assign a session ID.
+     */
+    NodeHandler(NodeChannel channel, NodeHost host) {
+        this.channel = channel;
+        this.host = host;
+        this.outbox = channel.outbox();
+        this.limiter = RateLimiter.forSession(host.config());
+        startHandshakeTimer();
+    }
+
+    /**
+     * Creates a NodeHandler connected to nothing, as if its client had completed its handshake.
+     * @see #detached(NodeHost, String, int, boolean)
+     */
+    private NodeHandler(NodeHost host, String username, int sessionID) {
+        this.host = host;
+        this.username = username;
+        this.prefix = ("[" + username + "] ").getBytes(StandardCharsets.UTF_8);
+        this.sessionID = sessionID;
+        this.outbox = new Outbox(host.config(), host.metrics(), null);
+        this.limiter = RateLimiter.forSession(host.config());
+    }
+
+    /**
+     * Creates a client that has completed its handshake but is connected to nothing, for benchmarks.
+     * It has no reader or writer, so messages delivered to it stay in its outbox until taken from {@link #outbox()}.
+     * It is not registered anywhere.
+     * @param host the server the client belongs to.
+     * @param username the client's username.
+     * @param sessionID the client's session ID.
+     * @param framed true for a client speaking the binary frame protocol.
+     */
+    static NodeHandler detached(NodeHost host, String username, int sessionID, boolean framed) {
+        NodeHandler node = new NodeHandler(host, username, sessionID);
+        if (framed) node.useFrames();
+        return node;
+    }
+
     /**
      * The run method listens for messages from the client and broadcasts them on its own thread. 
+     * It starts with the handshake: the first byte tells whether the client speaks the line
+     * protocol or the binary frame protocol, and the first line or frame carries the username.
      */
     @Override
     public void run() {
-        String message;
+        if (outbox == null) return;                            // The streams could not be opened.
+        host.execute(this::writeOutbox);                       // Start the writer before anything is queued.
+        startHandshakeTimer();
         try {
-            while ((message = input.readLine()) != null) {
-                if (message.trim().equalsIgnoreCase("/exit")) {
-                    output.write("Goodbye!");
-                    output.newLine();
-                    output.flush();
-                    break;
-                }
-                broadcast("[" + username + "] " + message, true);
+            if (FrameCodec.negotiate(input)) {
+                useFrames();
+                readFrames(new DataInputStream(new BufferedInputStream(input, INPUT_BUFFER_BYTES)));
+            } else {
+                readLines(new LineDecoder(host.config().maxLineBytes, host.buffers()));
             }
         } catch (IOException e) {
         } finally {
@@ -67,33 +127,719 @@ public class NodeHandler implements Runnable {
     }
 
     /**
-     * Sends a message to all connected clients.
+     * Reads a client that speaks the line protocol: the username, then one message per line.
+     * A line longer than the configured limit ends the connection.
+     */
+    private void readLines(LineDecoder lines) throws IOException {
+        try {
+            String message;
+            join(lines.read(input));                           // First line is expected to be the username.
+            while ((message = lines.read(input)) != null) {
+                if (!handle(message)) break;
+            }
+        } finally {
+            lines.release();
+        }
+    }
+
+    /**
+     * Reads a client that speaks the frame protocol: a HELLO or RESUME frame, then one frame per message.
+     */
+    private void readFrames(DataInputStream in) throws IOException {
+        FrameCodec.Frame frame = FrameCodec.read(in);
+        if (frame == null) throw new EOFException("Client left before sending a username");
+        start(frame);
+        while ((frame = FrameCodec.read(in)) != null) {
+            if (!handle(frame)) break;
+        }
+    }
+
+    /**
+     * Returns the queue of messages waiting to be written to the client.
+     */
+    Outbox outbox() {
+        return outbox;
+    }
+
+    /**
+     * Switches this client to the binary frame protocol. Called once, during the handshake.
+     */
+    void useFrames() {
+        framed = true;
+        outbox.useFrames();
+    }
+
+    /**
+     * Handles one line received on a non-blocking connection. Called on the event loop thread.
+     * @param line the line without its terminator.
+     */
+    void receive(String line) {
+        try {
+            if (username == null) {
+                join(line);
+            } else if (!handle(line)) {
+                terminateConnection();
+            }
+        } catch (IOException e) {
+            terminateConnection();
+        }
+    }
+
+    /**
+     * Handles one frame received on a non-blocking connection. Called on the event loop thread.
+     * @param frame the decoded frame.
+     */
+    void receive(FrameCodec.Frame frame) {
+        try {
+            if (username == null) {
+                start(frame);
+            } else if (!handle(frame)) {
+                terminateConnection();
+            }
+        } catch (IOException e) {
+            terminateConnection();
+        }
+    }
+
+    /**
+     * Called when a non-blocking connection is closed by the client or fails.
+     */
+    void disconnected() {
+        terminateConnection();
+    }
+
+    /**
+     * Handles the first frame of a binary client, which either starts a new session or resumes one.
+     * @param frame a HELLO frame carrying the username, or a RESUME frame.
+     */
+    private void start(FrameCodec.Frame frame) throws IOException {
+        if (frame.type == FrameCodec.HELLO) {
+            join(new String(frame.payload, StandardCharsets.UTF_8));
+        } else if (frame.type == FrameCodec.RESUME && frame.payload.length >= 16) {
+            ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+            long presented = payload.getLong();
+            long lastSeq = payload.getLong();
+            resume(presented, lastSeq, StandardCharsets.UTF_8.decode(payload).toString());
+        } else {
+            throw new ProtocolException("Expected a HELLO or RESUME frame");
+        }
+    }
+
+    /**
+     * Completes the handshake of a new client: checks that its username arrived in time and starts its session.
+     * @param name the username sent by the client.
+     */
+    private void join(String name) throws IOException {
+        if (name == null) throw new EOFException("Client left before sending a username");
+        if (!handshakeTimer.cancel(false)) throw new EOFException("Handshake timed out");
+        NodeEvents.Handshake event = new NodeEvents.Handshake();
+        event.begin();
+        enter(name);
+        handshakeDone(event, "joined");
+    }
+
+    /**
+     * Puts the client in the lobby, announces it, registers it under its username and sends the welcome message.
+     * Stops after registering if the connection was closed in the meantime.
+     * @param name the username sent by the client.
+     */
+    private void enter(String name) {
+        this.username = name;
+        this.prefix = ("[" + name + "] ").getBytes(StandardCharsets.UTF_8);
+        this.sessionID = channel != null ? channel.loop().nextSessionID() : host.generateSessionID();
+        startReplay(false);
+        this.room = host.rooms().join(RoomRegistry.LOBBY, this);
+        long joinedAt = endOfReplay();
+        host.metrics().joined.increment();
+        host.mesh().sessionChanged(username, sessionID, true);
+
+        broadcast("[System] " + username + " just joined the chat. ID: " + sessionID, true);
+        if (!register()) return;
+
+        send("Welcome to the chat " + username + "! Your session ID is: " + sessionID);
+        sendToken();
+        replayHistory(room, joinedAt);
+    }
+
+    /**
+     * Gives a client back the session it had before its connection dropped, and sends it the messages
+     * of its room that it missed. Nobody is told, since for the others the client never left.
+     * If the session has expired or the server cannot resume sessions, the client joins as a new one.
+     * @param presented the token the client received for its session.
+     * @param lastSeq the highest sequence number the client received.
+     * @param name the client's username.
+     */
+    private void resume(long presented, long lastSeq, String name) throws IOException {
+        if (!handshakeTimer.cancel(false)) throw new EOFException("Handshake timed out");
+        NodeEvents.Handshake event = new NodeEvents.Handshake();
+        event.begin();
+        ParkedSessions.Parked session = host.parked() == null ? null : host.parked().claim(presented, name);
+        if (session == null) {
+            enter(name);
+            send("[System] Your previous session has ended; messages sent while you were away are lost.");
+            handshakeDone(event, "rejoined");
+            return;
+        }
+        this.username = name;
+        this.prefix = ("[" + name + "] ").getBytes(StandardCharsets.UTF_8);
+        this.sessionID = session.sessionID;
+        startReplay(true);
+        this.room = host.rooms().join(session.room, this);
+        long resumedAt = endOfReplay();
+        host.metrics().resumed.increment();
+        host.mesh().sessionChanged(username, sessionID, true);
+        if (!register()) return;
+
+        send("Welcome back " + username + "! Your session ID is: " + sessionID);
+        sendToken();
+        HistoryRing retained = host.retained();
+        List<Envelope> missed = retained.range(lastSeq, resumedAt, session.room);
+        if (!retained.holdsAfter(lastSeq)) {                      // Checked after reading: overwrites during the read count too.
+            send("[System] Some messages sent while you were away are no longer available.");
+        }
+        for (Envelope envelope : missed) deliver(envelope);
+        handshakeDone(event, "resumed");
+    }
+
+    /**
+     * Adds the client to the session registry. The client must already be in its room, so that closing
+     * the connection, which only cleans up registered sessions, always finds the room to leave.
+     * @return false if the connection was closed while the client was joining; its session is then ended.
+     */
+    private boolean register() {
+        host.sessions().add(this);
+        if (!closed) return true;
+        terminateConnection();                 // Closed before it was registered, so nothing was cleaned up.
+        return false;
+    }
+
+    /**
+     * Commits a Handshake event if JFR is recording it.
+     * @param event the event, begun when the handshake arrived.
+     * @param outcome what became of the handshake.
+     */
+    private void handshakeDone(NodeEvents.Handshake event, String outcome) {
+        if (event.shouldCommit()) {
+            event.username = username;
+            event.sessionID = sessionID;
+            event.framed = framed;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    /**
+     * Sends a binary client the token that lets it resume its session, if sessions can be resumed.
+     */
+    private void sendToken() {
+        if (!framed || host.parked() == null) return;
+        token = host.parked().newToken(this);
+        deliver(new Envelope(FrameCodec.SESSION, sessionID, ByteBuffer.allocate(8).putLong(token).array()));
+    }
+
+    /**
+     * Holds back the published messages a coming replay will send, until the replay's end is known.
+     * Called just before the client is added to a room. A message published while the client joins may
+     * reach it live as well as be stored for the replay; holding back everything up to the replay's end
+     * makes sure it is sent once.
+     * @param all true if the replay covers every message of the room, false if it only covers chat,
+     *            which rooms only keep if history is enabled.
+     */
+    private void startReplay(boolean all) {
+        if (!all && host.config().historyDepth <= 0) return;
+        replaysAll = all;
+        replayedUpTo = Long.MAX_VALUE;
+    }
+
+    /**
+     * Fixes the end of the replay, if one was started, once the client is in its room: later messages reach it live.
+     * Every message published before the client was added has a sequence number up to this one, and every
+     * message up to this one is already stored for the replay, since the host only counts a message once it is.
+     * @return the server's last sequence number, the highest one the replay sends.
+     */
+    private long endOfReplay() {
+        long last = host.lastSequence();
+        if (replayedUpTo == Long.MAX_VALUE) replayedUpTo = last;
+        return last;
+    }
+
+    /**
+     * Sends the client the recent messages of a room it just joined.
+     * @param joined the room.
+     * @param joinedAt the server's last sequence number when the client was added to the room;
+     *                 later messages reach the client live.
+     */
+    private void replayHistory(Room joined, long joinedAt) {
+        if (joined.history() == null) return;
+        List<Envelope> recent = joined.history().recent(joinedAt);
+        if (recent.isEmpty()) return;
+        send("[System] Recent messages in #" + joined.getName() + ":");
+        for (Envelope envelope : recent) deliver(envelope);
+    }
+
+    /**
+     * Gives the client a limited time to send its username, so a client that connects and stays
+     * silent (or trickles bytes) cannot hold on to a connection forever.
+     */
+    private void startHandshakeTimer() {
+        handshakeTimer = host.timer().schedule(this::handshakeTimedOut,
+                host.config().handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes a connection whose client did not send its username in time. Runs on the server's timer thread.
+     */
+    private void handshakeTimedOut() {
+        System.out.println("[Server] Handshake timed out, closing connection.");
+        handshakeDone(new NodeEvents.Handshake(), "timed out");
+        if (channel != null) {
+            channel.close();
+        } else {
+            closeSocket();                     // Also ends the reader, which is still waiting for the username.
+        }
+    }
+
+    /**
+     * Handles one chat line from the client.
+     * @param message the line sent by the client.
+     * @return false if the client asked to leave.
+     */
+    private boolean handle(String message) {
+        String command = message.trim();
+        if (command.equalsIgnoreCase("/exit")) {
+            leaving = true;
+            deliver(new Envelope(FrameCodec.BYE, 0, "Goodbye!".getBytes(StandardCharsets.UTF_8)));
+            return false;
+        }
+        if (command.startsWith("/")) {
+            handleCommand(command);
+            return true;
+        }
+        chat(message.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    /**
+     * Sends a chat message from the client to its room, unless the client or the room is over its rate limit.
+     * @param message the message as sent by the client, in UTF-8.
+     */
+    private void chat(byte[] message) {
+        host.metrics().received.increment();
+        Room target = room;
+        if (!admit(target, message.length)) return;
+        broadcast(Envelope.chat(sessionID, prefix, message), target, true);
+    }
+
+    /**
+     * Checks a message against the client's rate limit and its room's, before it costs anything to fan out.
+     * A refused message is dropped, and the first one of a run is answered with a notice.
+     * @param target the room the message goes to, or null for a private message.
+     * @param size size of the message in bytes.
+     * @return true if the message may be sent.
+     */
+    private boolean admit(Room target, int size) {
+        long now = System.nanoTime();
+        if (limiter != null && !limiter.tryAcquire(size, now)) {
+            host.metrics().sessionThrottled.increment();
+            throttle("[System] You are sending messages too fast. Slow down; messages are dropped until you do.");
+            return false;
+        }
+        RateLimiter shared = target == null ? null : target.limiter();
+        if (shared != null && !shared.tryAcquire(size, now)) {
+            if (limiter != null) limiter.release(size);
+            host.metrics().roomThrottled.increment();
+            throttle("[System] #" + target.getName() + " is too busy right now. Your messages are dropped until it calms down.");
+            return false;
+        }
+        throttled = false;
+        return true;
+    }
+
+    /**
+     * Tells the client that its messages are being dropped, once per run of dropped messages.
+     * @param notice the notice to send.
+     */
+    private void throttle(String notice) {
+        if (throttled) return;
+        throttled = true;
+        send(notice);
+    }
+
+    /**
+     * Handles a command other than /exit.
+     * @param command the trimmed line, starting with '/'.
+     */
+    private void handleCommand(String command) {
+        String[] parts = command.split("\\s+", 2);
+        switch (parts[0].toLowerCase()) {
+            case "/join":
+                if (parts.length < 2 || !RoomRegistry.isValidName(parts[1])) {
+                    send("[System] Usage: /join <room> (1-32 letters, digits, '-' or '_')");
+                } else {
+                    moveTo(parts[1]);
+                }
+                break;
+            case "/msg":
+                String[] args = parts.length < 2 ? new String[0] : parts[1].split("\\s+", 2);
+                if (args.length < 2) {
+                    send("[System] Usage: /msg <id|username> <message>");
+                } else {
+                    sendPrivate(args[0], args[1]);
+                }
+                break;
+            case "/leave":
+                moveTo(RoomRegistry.LOBBY);
+                break;
+            case "/stats":
+                if (!isLocal()) {
+                    send("[System] /stats is only available from the server's own machine.");
+                } else {
+                    for (String line : host.metrics().report(host)) send(line);
+                }
+                break;
+            case "/rooms":
+                StringBuilder list = new StringBuilder("[System] Rooms:");
+                for (Room r : host.rooms().rooms()) {
+                    list.append(" #").append(r.getName()).append(" (").append(r.size()).append(')');
+                }
+                send(list.toString());
+                break;
+            default:
+                send("[System] Unknown command: " + parts[0] + ". Commands: /msg <id|username> <message>, /join <room>, /leave, /rooms, /exit");
+        }
+    }
+
+    /**
+     * Sends a private message to one client, looked up by session ID or username in the session
+     * registry, so it costs a single enqueue no matter how many clients are connected.
+     * A recipient on another host is reached through the mesh, and that host reports the delivery.
+     * Private messages count against the client's rate limit.
+     * @param recipient the recipient's session ID or username.
+     * @param message the text to send.
+     */
+    private void sendPrivate(String recipient, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        if (!admit(null, text.length)) return;
+        NodeHandler target = host.sessions().get(recipient);
+        if (target == null && isNumber(recipient)) {
+            target = host.sessions().get(Integer.parseInt(recipient));
+        }
+        byte[] from = ("[PM from " + username + "] ").getBytes(StandardCharsets.UTF_8);
+        if (target == null) {
+            Envelope envelope = Envelope.chat(sessionID, from, text);
+            boolean routed = isNumber(recipient)
+                    ? host.mesh().sendDirect(Integer.parseInt(recipient), envelope)
+                    : host.mesh().sendDirect(recipient, envelope);
+            if (!routed) send("[System] No user or session ID '" + recipient + "' is connected.");
+            return;                                        // The recipient's host reports the delivery.
+        }
+        send(target.deliverPrivate(Envelope.chat(sessionID, from, text)));
+    }
+
+    /**
+     * Tells whether a string is a short run of digits that fits in a session ID.
+     */
+    private static boolean isNumber(String text) {
+        if (text.isEmpty() || text.length() > 10) return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') return false;
+        }
+        return Long.parseLong(text) <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Tells whether the client connected from the server's own machine, which allows admin commands.
+     */
+    private boolean isLocal() {
+        return socket != null ? socket.getInetAddress().isLoopbackAddress() : channel.isLocal();
+    }
+
+    /**
+     * Moves the client to another room and tells both rooms about it.
+     * @param name the name of the room to move to.
+     */
+    private void moveTo(String name) {
+        Room current = room;
+        if (current.getName().equals(name)) {
+            send("[System] You are already in #" + name + ".");
+            return;
+        }
+        host.rooms().leave(current, this);
+        broadcast(Envelope.system("[System] " + username + " left #" + current.getName() + "."), current, false);
+        startReplay(false);
+        Room next = host.rooms().join(name, this);
+        long joinedAt = endOfReplay();
+        room = next;
+        broadcast("[System] " + username + " joined #" + name + ".", true);
+        send("[System] You are now in #" + name + " (" + next.size() + " members).");
+        replayHistory(next, joinedAt);
+    }
+
+    /**
+     * Handles one frame from the client. Chat frames are relayed without decoding their payload;
+     * only commands, which start with '/', are decoded.
+     * @param frame the frame sent by the client.
+     * @return false if the client asked to leave.
+     */
+    private boolean handle(FrameCodec.Frame frame) {
+        switch (frame.type) {
+            case FrameCodec.TEXT:
+                if (frame.payload.length > 0 && frame.payload[0] == '/') {
+                    return handle(new String(frame.payload, StandardCharsets.UTF_8));
+                }
+                chat(frame.payload);
+                return true;
+            case FrameCodec.BYE:
+                return handle("/exit");
+            default:
+                return true;                   // Unknown types are ignored for forward compatibility.
+        }
+    }
+
+    /**
+     * Queues a notice for this client.
+     * @param msg the message to send.
+     */
+    private void send(String msg) {
+        deliver(Envelope.system(msg));
+    }
+
+    /**
+     * Sends a notice from the server to everyone in the client's room.
      * @param msg the message to send.
      * @param skipSelf if true, the message is not sent back to the sender.
      */
     private void broadcast(String msg, boolean skipSelf) {
-        for (NodeHandler node : activeNodes) {
-            if (skipSelf && node == this) continue;
-            try {
-                node.output.write(msg);
-                node.output.newLine();
-                node.output.flush();
-            } catch (IOException e) {
-                node.terminateConnection(); // In error: close connetion with the client. 
+        broadcast(Envelope.system(msg), room, skipSelf);
+    }
+
+    /**
+     * Sends a message to everyone in the client's room.
+     * @param envelope the message to send.
+     * @param skipSelf if true, the message is not sent back to the sender.
+     */
+    private void broadcast(Envelope envelope, boolean skipSelf) {
+        broadcast(envelope, room, skipSelf);
+    }
+
+    /**
+     * Sends a message to the members of a room. Only enqueues; the recipients' writers do the socket I/O.
+     * The message is encoded at most once per protocol, and the same read-only buffer is queued
+     * for every recipient speaking that protocol. The message is also forwarded to the other hosts of the mesh.
+     * @param envelope the message to send.
+     * @param target the room whose members receive the message.
+     * @param skipSelf if true, the message is not sent back to the sender.
+     */
+    private void broadcast(Envelope envelope, Room target, boolean skipSelf) {
+        host.publish(target, envelope, skipSelf ? this : null);
+        host.mesh().forward(target.getName(), envelope);
+    }
+
+    /**
+     * Queues a message for this client in the client's protocol. If the client has fallen so far
+     * behind that the DISCONNECT policy gives up on it, it is disconnected right away.
+     * @param envelope the message, possibly shared with other recipients.
+     * @return QUEUED if the message was queued, DROPPED if the slow-consumer policy discarded it,
+     *         REFUSED if the client is leaving, OVERFLOWED if this message made the client be disconnected.
+     */
+    Outbox.Offer deliver(Envelope envelope) {
+        Outbox.Offer result = outbox.offer(envelope.encoded(framed), envelope.createdAt);
+        if (result == Outbox.Offer.OVERFLOWED) {  // Returned once, so a client is only disconnected and counted once.
+            System.out.println("[Server] Disconnecting slow node " + username + " (ID: " + sessionID + ")");
+            host.metrics().slowDisconnects.increment();
+            leaving = true;                    // Resuming would only replay the backlog it could not keep up with.
+            terminateConnection();
+            if (channel != null) {
+                channel.close();
+            } else {
+                closeSocket();                 // Also unblocks a writer stuck on the slow socket.
             }
         }
+        return result;
+    }
+
+    /**
+     * Queues a message published in a room of the client, unless the client gets it from a replay instead.
+     * @param envelope the message, with its sequence number set.
+     */
+    void deliverPublished(Envelope envelope) {
+        if (envelope.seq <= replayedUpTo && (replaysAll || envelope.type == FrameCodec.TEXT)) return;
+        deliver(envelope);
     }
 
     /**
-     * Closes the connection with the client and removes this handler from the active list.
+     * Queues a private message for this client and describes what became of it, for the sender.
+     * @param envelope the private message.
+     * @return the notice to send to the sender.
+     */
+    String deliverPrivate(Envelope envelope) {
+        switch (deliver(envelope)) {
+            case QUEUED:
+                return "[System] Message delivered to " + username + " (ID: " + sessionID + ").";
+            case DROPPED:
+                return "[System] " + username + " is not keeping up, message not delivered.";
+            default:
+                return "[System] " + username + " is leaving, message not delivered.";
+        }
+    }
+
+    /**
+     * Writer loop for a blocking connection: writes queued messages until the outbox is closed
+     * and drained, then closes the socket. Runs on its own thread (or virtual thread).
+     * Blocking here only ever holds up this client.
+     * Messages are coalesced: after the first one arrives the writer waits up to the configured delay
+     * for more, and writes the whole batch with a single call unless it reaches the byte threshold first.
+     */
+    private void writeOutbox() {
+        NodeConfig config = host.config();
+        try {
+            outbox.drainTo(output, TimeUnit.MICROSECONDS.toNanos(config.coalesceDelayMicros), host.buffers(), config.coalesceBytes);
+        } catch (IOException | InterruptedException e) {
+            // The client is gone; closing the socket below also ends the reader.
+        } finally {
+            closeSocket();
+        }
+    }
+
+    /**
+     * Returns the client's username, or null before the handshake.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the session ID assigned to the client.
+     */
+    public int getSessionID() {
+        return sessionID;
+    }
+
+    /**
+     * Returns the token that resumes this session, or 0 if it cannot be resumed.
+     */
+    long getToken() {
+        return token;
+    }
+
+    /**
+     * Returns the room the client is in, or null before the handshake.
+     */
+    public Room getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns the number of messages waiting to be written to this client.
+     */
+    public int getQueuedMessages() {
+        return outbox.queuedMessages();
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written to this client.
+     */
+    public long getQueuedBytes() {
+        return outbox.queuedBytes();
+    }
+
+    /**
+     * Returns how long the oldest message queued for this client has been waiting, in milliseconds.
+     */
+    public long getLagMillis() {
+        return outbox.lagMillis();
+    }
+
+    /**
+     * Returns the number of messages handed to this client's writer.
+     */
+    public long getSentMessages() {
+        return outbox.sentMessages();
+    }
+
+    /**
+     * Returns the number of messages dropped for this client by the slow-consumer policy.
+     */
+    public long getDroppedMessages() {
+        return outbox.droppedMessages();
+    }
+
+    /**
+     * Returns how many times this client's backlog was coalesced into a single notice.
+     */
+    public long getCoalescedRuns() {
+        return outbox.coalescedRuns();
+    }
+
+    /**
+     * Closes this connection because the client reconnected on another one to resume its session.
+     * The session is parked, as for any dropped connection, so that the new connection can claim it.
+     * Safe to call from any thread.
+     */
+    void supersede() {
+        System.out.println("[Server] Node " + username + " (ID: " + sessionID + ") reconnected; closing its old connection.");
+        terminateConnection();
+        if (channel != null) {
+            channel.close();
+        } else {
+            closeSocket();                     // Also unblocks a reader or writer stuck on the half-open socket.
+        }
+    }
+
+    /**
+     * Closes the connection with the client and removes this handler from the session registry.
+     * Messages already queued for the client are still written before the socket closes.
+     * If a client that can resume its session lost its connection without saying goodbye, the session
+     * is parked instead of ended, and its room hears about it only if the client does not come back.
+     * The first call for a connection records a Disconnect event when JFR records one.
      */
     private void terminateConnection() {
-        activeNodes.remove(this);
-        broadcast("[System] " + username + " left the chat.", false);
+        NodeEvents.Disconnect event = new NodeEvents.Disconnect();
+        event.begin();
+        boolean ended = username == null;      // A connection that never joined has no session to remove.
+        boolean parked = false;
+        closed = true;
+        if (token != 0) host.parked().closing(this);
+        if (username != null && host.sessions().remove(this)) {
+            ended = true;
+            host.rooms().leave(room, this);
+            if (token != 0 && !leaving) {
+                host.parked().park(this);
+                parked = true;
+            } else {
+                host.metrics().left.increment();
+                host.mesh().sessionChanged(username, sessionID, false);
+                broadcast("[System] " + username + " left the chat.", false);
+            }
+        }
+        if (channel != null) {
+            channel.closeAfterFlush();
+        } else if (outbox != null) {
+            outbox.close();                // The writer closes the socket once the outbox is drained.
+        } else {
+            closeSocket();
+        }
+        if (ended && event.shouldCommit()) {
+            event.username = username;
+            event.sessionID = sessionID;
+            event.parked = parked;
+            if (outbox != null) {
+                event.queuedMessages = outbox.queuedMessages();
+                event.queuedBytes = outbox.queuedBytes();
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Closes the socket and I/O streams of a blocking connection.
+     */
+    private void closeSocket() {
         try {
-            if (input != null) input.close();
-            if (output != null) output.close();
+            // Closing the socket closes its streams too. Closing the input first would wait
+            // for a read blocked on another thread, so the socket goes first.
             if (socket != null) socket.close();
+            if (input != null) input.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,46 +1,324 @@
 package com.networkmesh.messenger;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * NodeHost is the main server class. It listens for incoming client connections
  * and creates a new thread for each client using the NodeHandler class.
+ * In virtual mode those threads are virtual threads, and in selector mode the connections are
+ * spread over a small pool of NodeLoop event loops instead.
+ * The class is final: its constructor hands the host to the parts it wires together, such as the mesh
+ * router, which a subclass would let see it before the subclass is initialized.
  */
-public class NodeHost {
+public final class NodeHost {
 
     
     private ServerSocket serverSocket;              // ServerSocket used to accept client connections
-    private static int sessionCounter = 1000;       // Counter used to assign unique session IDs to each client
+    private final NodeConfig config;                // Tunable settings of this server
+    private final SessionRegistry sessions;         // Clients connected to this server
+    private final RoomRegistry rooms;               // Rooms of this server and their members
+    private final SessionIdAllocator sessionIDs;    // Lock-free allocator for the session IDs of this node
+    private final MeshRouter mesh;                  // Links to the other hosts of the mesh
+    private final MessageLog log;                   // Durable record of room messages, if configured
+    private final AtomicLong sequence;              // Sequence number of the last published message, set once it is stored
+    private final ReentrantLock numbering = new ReentrantLock(); // Numbers and stores published messages one at a time
+    private final HistoryRing retained;             // Recent messages of every room, for resumed sessions, if enabled
+    private final ParkedSessions parked;            // Sessions waiting for their client to reconnect, if enabled
+    private final NodeMetrics metrics;              // Counters and latency histograms of this server
+    private final BufferPool buffers;               // Direct buffers lent to connections while they read or write
+    private NodeLoop[] loops;                       // Event loops, when running in selector mode
+    private ExecutorService workers;                // Virtual-thread executor, when running in virtual mode
+    private final ScheduledExecutorService timer;   // Runs delayed tasks such as handshake timeouts
 
     /**
      * Constructor that sets the server socket to use for accepting connections. 
      */
     public NodeHost(ServerSocket serverSocket) {
+        this(serverSocket, new NodeConfig());
+    }
+
+    /**
+     * Constructor that sets the server socket to use for accepting connections and the server settings.
+     * @throws UncheckedIOException if the message log is configured but cannot be opened.
+     */
+    public NodeHost(ServerSocket serverSocket, NodeConfig config) {
         this.serverSocket = serverSocket;
+        this.config = config;
+        this.sessions = new SessionRegistry();
+        this.metrics = new NodeMetrics();
+        this.buffers = new BufferPool(config.bufferPoolBytes);
+        this.sessionIDs = new SessionIdAllocator(config.nodeId, this::holdsSessionID);
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "node-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.mesh = new MeshRouter(this);
+        this.rooms = new RoomRegistry(mesh, config);
+        try {
+            this.log = config.logDir.isEmpty() ? null
+                    : MessageLog.open(Path.of(config.logDir), config.logSegmentBytes, config.logSync);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the message log in " + config.logDir, e);
+        }
+        this.sequence = new AtomicLong(log == null ? 0 : log.lastSequence());
+        boolean resumable = config.resumeGraceMillis > 0 && config.resumeRetention > 0;
+        this.retained = resumable ? new HistoryRing(config.resumeRetention) : null;
+        this.parked = resumable ? new ParkedSessions(this, config.resumeGraceMillis) : null;
+    }
+
+    /**
+     * Returns the settings of this server.
+     */
+    public NodeConfig config() {
+        return config;
+    }
+
+    /**
+     * Returns the registry of clients connected to this server.
+     */
+    public SessionRegistry sessions() {
+        return sessions;
+    }
+
+    /**
+     * Returns the rooms of this server.
+     */
+    public RoomRegistry rooms() {
+        return rooms;
+    }
+
+    /**
+     * Returns the router that links this server to the other hosts of the mesh.
+     */
+    public MeshRouter mesh() {
+        return mesh;
+    }
+
+    /**
+     * Returns the message log, or null if none is configured.
+     */
+    public MessageLog log() {
+        return log;
     }
 
     /**
-     * Generates a unique session ID for each connected client.
+     * Returns the counters and latency histograms of this server.
+     */
+    public NodeMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the pool of buffers lent to connections for reading and writing.
+     */
+    BufferPool buffers() {
+        return buffers;
+    }
+
+    /**
+     * Returns the sessions waiting for their client to reconnect, or null if sessions cannot be resumed.
+     */
+    public ParkedSessions parked() {
+        return parked;
+    }
+
+    /**
+     * Returns the recent messages of every room, or null if sessions cannot be resumed.
+     */
+    HistoryRing retained() {
+        return retained;
+    }
+
+    /**
+     * Returns the sequence number of the last message published on this server. Every message up to it
+     * is already in the message log queue, the retention ring and its room's history.
+     */
+    long lastSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Delivers a message to the members of a room on this server. The message gets the next sequence
+     * number of the server, is queued for the message log, kept for resumed sessions and, if it is a
+     * chat message, kept in the room's history. These steps run under a short lock, so messages are stored
+     * in sequence order and {@link #lastSequence()} only moves past a message once it is stored; a client
+     * joining a room can then rely on every message up to that number being in the history it replays.
+     * The fan-out to the members happens outside the lock and never waits. The time from the
+     * message entering the server until it is queued for every member is recorded, and so is a
+     * Broadcast event when JFR records one.
+     * @param room the room.
+     * @param envelope the message.
+     * @param skip a member that must not receive it, usually its sender, or null.
+     */
+    void publish(Room room, Envelope envelope, NodeHandler skip) {
+        NodeEvents.Broadcast event = new NodeEvents.Broadcast();
+        event.begin();
+        envelope.room = room.getName();
+        numbering.lock();
+        try {
+            envelope.seq = sequence.get() + 1;
+            if (log != null) log.append(room.getName(), envelope);
+            if (retained != null) retained.add(envelope);
+            if (room.history() != null && envelope.type == FrameCodec.TEXT) room.history().add(envelope);
+            sequence.set(envelope.seq);
+        } finally {
+            numbering.unlock();
+        }
+        int recipients = 0;
+        for (NodeHandler node : room.members()) {
+            if (node != skip) {
+                node.deliverPublished(envelope);
+                recipients++;
+            }
+        }
+        metrics.published.increment();
+        metrics.fanout.record(System.nanoTime() - envelope.createdAt);
+        if (event.shouldCommit()) {
+            event.room = envelope.room;
+            event.seq = envelope.seq;
+            event.recipients = recipients;
+            event.bytes = envelope.body.length;
+            event.commit();
+        }
+    }
+
+    /**
+     * Generates a unique session ID for each connected client. Safe to call from any thread.
      */
     public int generateSessionID() {
-        return sessionCounter++;
+        return sessionIDs.next();
+    }
+
+    /**
+     * Tells whether a session ID is held by a connected or parked session, so that the allocator skips it after wrapping.
+     */
+    private boolean holdsSessionID(int sessionID) {
+        return sessions.get(sessionID) != null || (parked != null && parked.holds(sessionID));
+    }
+
+    /**
+     * Returns the scheduler for the server's delayed tasks. Tasks must be short and must not block.
+     */
+    ScheduledExecutorService timer() {
+        return timer;
+    }
+
+    /**
+     * Returns the allocator behind {@link #generateSessionID()}, for threads that reserve IDs in blocks.
+     */
+    SessionIdAllocator sessionIDs() {
+        return sessionIDs;
     }
 
     /**
      * Starts the server, accepts client connections, and handles each one in a new thread.
      */
     public void launch() {
+        launch(false);
+    }
+
+    /**
+     * Starts the server, accepts client connections, and handles each one in a new thread.
+     * The accept loop never waits on a client: the handshake runs on the client's own thread.
+     * @param virtualThreads if true, each client runs on a virtual thread instead of a platform thread.
+     */
+    public void launch(boolean virtualThreads) {
+        if (virtualThreads) workers = Executors.newVirtualThreadPerTaskExecutor();
+        startServices();
         System.out.println("[Server] Listening for incoming client nodes...");
         try {
             while (!serverSocket.isClosed()) {
                 Socket socket = serverSocket.accept(); // Accept new client connection
+                NodeEvents.Accept event = new NodeEvents.Accept();
+                event.begin();
+                metrics.accepted.increment();
                 System.out.println("[Server] Node connected: " + socket.getInetAddress());
 
                 // Create and start a handler thread for this client
                 NodeHandler handler = new NodeHandler(socket, this);
-                new Thread(handler).start();
+                execute(handler);
+                if (event.shouldCommit()) {
+                    event.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+                    event.commit();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[Server] IOException: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts what runs alongside the accept loop: the mesh links and the periodic statistics.
+     */
+    private void startServices() {
+        mesh.start();
+        long interval = config.statsIntervalMillis;
+        if (interval > 0) {
+            timer.scheduleAtFixedRate(() -> System.out.println(metrics.intervalReport()), interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs a task for a blocking connection on a new thread, or on a virtual thread in virtual mode.
+     * @param task the reader or writer loop of a client.
+     */
+    void execute(Runnable task) {
+        if (workers != null) {
+            workers.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    /**
+     * Starts the server in selector mode: accepted channels are handed round-robin to a fixed
+     * pool of event loops, each of which serves many clients on a single thread.
+     * The server socket must have been opened through a ServerSocketChannel.
+     * @param loopCount number of event-loop threads.
+     */
+    public void launchSelector(int loopCount) {
+        ServerSocketChannel acceptor = serverSocket.getChannel();
+        if (acceptor == null) {
+            System.out.println("[Server] Selector mode needs a server socket opened from a ServerSocketChannel.");
+            return;
+        }
+
+        startServices();
+        loops = new NodeLoop[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new NodeLoop(this);
+                loops[i].start("node-loop-" + i);
+            }
+            System.out.println("[Server] Listening for incoming client nodes on " + loopCount + " event loops...");
+
+            int next = 0;
+            while (acceptor.isOpen()) {
+                SocketChannel channel = acceptor.accept(); // Accept new client connection
+                NodeEvents.Accept event = new NodeEvents.Accept();
+                event.begin();
+                metrics.accepted.increment();
+                System.out.println("[Server] Node connected: " + channel.socket().getInetAddress());
+                loops[next].register(channel);
+                next = (next + 1) % loopCount;
+                if (event.shouldCommit()) {
+                    event.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+                    event.commit();
+                }
             }
         } catch (IOException e) {
             System.out.println("[Server] IOException: " + e.getMessage());
@@ -51,6 +329,15 @@ public class NodeHost {
      * Closes the server socket to shut down the server.
      */
     public void ServerShutdown() {
+        if (loops != null) {
+            for (NodeLoop loop : loops) {
+                if (loop != null) loop.shutdown();
+            }
+        }
+        mesh.shutdown();
+        if (workers != null) workers.shutdown();
+        timer.shutdown();
+        if (log != null) log.close();
         try {
             if (serverSocket != null) {
                 serverSocket.close();
@@ -61,11 +348,19 @@ public class NodeHost {
     }
 
     /**
-     * Main method that creates a NodeHost server on port 8080 and starts it.
+     * Main method that creates a NodeHost server on port 8080 (or -Dmesh.clientPort) and starts it.
+     * Pass "nio" (optionally followed by the number of event loops) to run in selector mode,
+     * or "virtual" to run every client on a virtual thread.
      */
     public static void main(String[] args) throws IOException {
-        ServerSocket socket = new ServerSocket(8080);
-        NodeHost server = new NodeHost(socket);
-        server.launch();
+        NodeConfig config = NodeConfig.fromSystemProperties();
+        ServerSocket socket = ServerSocketChannel.open().bind(new InetSocketAddress(config.clientPort)).socket();
+        NodeHost server = new NodeHost(socket, config);
+        if (args.length > 0 && args[0].equalsIgnoreCase("nio")) {
+            int loopCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            server.launchSelector(loopCount);
+        } else {
+            server.launch(args.length > 0 && args[0].equalsIgnoreCase("virtual"));
+        }
     }
 }
@@ -0,0 +1,189 @@
+package com.networkmesh.messenger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NodeLoop is a single event-loop thread that owns many client connections.
+ * It waits on a Selector and reads from / writes to every channel registered with it,
+ * so a handful of loops can serve thousands of clients without a thread per client.
+ */
+public class NodeLoop implements Runnable {
+
+    private final NodeHost host;                                                 // Server that owns this loop.
+    private final Selector selector;                                             // Selector for all channels of this loop.
+    private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>(); // Accepted channels waiting to be registered.
+    private final Queue<NodeChannel> writes = new ConcurrentLinkedQueue<>();     // Channels with output queued by other threads.
+    private final List<NodeChannel> delayed = new ArrayList<>();                 // Channels waiting for more output to coalesce.
+    private final long maxDelay;                                                 // How long output may wait to be coalesced.
+    private final long maxBytes;                                                 // Output that is written without waiting.
+    private final SessionIdAllocator.Block sessionIDs;                           // IDs reserved for handshakes on this loop.
+    private Thread thread;                                                       // Thread running this loop.
+    private volatile boolean running = true;                                     // Cleared to stop the loop.
+
+    /**
+     * Creates a new event loop for the given server.
+     * @param host the server the connections belong to.
+     */
+    public NodeLoop(NodeHost host) throws IOException {
+        this.host = host;
+        this.selector = Selector.open();
+        this.maxDelay = TimeUnit.MICROSECONDS.toNanos(host.config().coalesceDelayMicros);
+        this.maxBytes = host.config().coalesceBytes;
+        this.sessionIDs = host.sessionIDs().newBlock();
+    }
+
+    /**
+     * Starts the loop on its own thread.
+     * @param name name of the loop thread.
+     */
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Hands an accepted channel to this loop. Safe to call from any thread.
+     * @param channel the accepted client channel.
+     */
+    public void register(SocketChannel channel) {
+        incoming.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to flush the output queued on a channel. Safe to call from any thread.
+     * @param channel the channel with pending output.
+     */
+    void requestWrite(NodeChannel channel) {
+        writes.add(channel);
+        if (Thread.currentThread() != thread) selector.wakeup();
+    }
+
+    /**
+     * Allocates a session ID from the range reserved by this loop. Called on the loop thread only.
+     */
+    int nextSessionID() {
+        return sessionIDs.next();
+    }
+
+    /**
+     * Stops the loop and closes every channel it owns.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the select loop until the selector is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(selectTimeout());
+                registerIncoming();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NodeChannel node = (NodeChannel) key.attachment();
+                    if (key.isValid() && key.isReadable()) node.onReadable();
+                    if (key.isValid() && key.isWritable()) node.onWritable();
+                }
+                flushRequested();
+            }
+        } catch (IOException e) {
+            System.out.println("[Server] Event loop stopped: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Closes every channel owned by this loop and the selector itself.
+     */
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((NodeChannel) key.attachment()).close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Registers channels accepted since the last select with this loop's selector.
+     */
+    private void registerIncoming() {
+        SocketChannel channel;
+        while ((channel = incoming.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                NodeChannel node = new NodeChannel(channel, this, host);
+                node.attach(channel.register(selector, SelectionKey.OP_READ, node));
+            } catch (ClosedChannelException e) {
+                // The client went away before it could be registered.
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes output queued since the last select, both by other threads and by this loop itself.
+     * A channel whose output is small and recent is held back, up to the coalescing delay,
+     * so that messages arriving meanwhile share the same write.
+     */
+    private void flushRequested() {
+        long now = System.nanoTime();
+        NodeChannel node;
+        while ((node = writes.poll()) != null) {
+            long wait = node.flushDelay(maxDelay, maxBytes);
+            if (wait == 0) {
+                node.onWritable();
+            } else if (!node.isFlushDelayed()) {
+                node.delayFlush(true, now + wait);
+                delayed.add(node);
+            }
+        }
+        for (int i = delayed.size() - 1; i >= 0; i--) {
+            node = delayed.get(i);
+            if (node.flushAt() - now <= 0 || node.flushDelay(maxDelay, maxBytes) == 0) {
+                delayed.set(i, delayed.get(delayed.size() - 1));
+                delayed.remove(delayed.size() - 1);
+                node.delayFlush(false, 0);
+                node.onWritable();
+            }
+        }
+    }
+
+    /**
+     * Returns how long select may block: until the earliest delayed flush is due, or forever (0).
+     */
+    private long selectTimeout() {
+        if (delayed.isEmpty()) return 0;
+        long earliest = Long.MAX_VALUE;
+        long now = System.nanoTime();
+        for (NodeChannel node : delayed) {
+            earliest = Math.min(earliest, node.flushAt() - now);
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest + 999_999));  // Round up, never 0.
+    }
+}
@@ -0,0 +1,139 @@
+package com.networkmesh.messenger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * NodeMetrics counts what a NodeHost does and how long messages take on their way through it.
+ * Counters are LongAdders, which spread concurrent increments over several cells, and the latency
+ * histograms are striped the same way, so recording never locks or allocates and can stay on in production.
+ *
+ * Three latencies are measured, all starting when a message enters the server (read from a client or
+ * received from another host):
+ * read to fan-out, until it has been queued for every local member of its room;
+ * enqueue to flush, from the moment it was queued for one recipient until its writer wrote it out;
+ * read to delivery, the whole way to one recipient's socket.
+ */
+public class NodeMetrics {
+
+    final LongAdder accepted = new LongAdder();                    // Connections accepted.
+    final LongAdder joined = new LongAdder();                      // Sessions started.
+    final LongAdder resumed = new LongAdder();                     // Sessions resumed after a dropped connection.
+    final LongAdder left = new LongAdder();                        // Sessions ended.
+    final LongAdder slowDisconnects = new LongAdder();             // Clients disconnected for falling behind.
+    final LongAdder received = new LongAdder();                    // Chat messages received from clients.
+    final LongAdder published = new LongAdder();                   // Messages published to rooms on this host.
+    final LongAdder delivered = new LongAdder();                   // Messages queued for a client.
+    final LongAdder dropped = new LongAdder();                     // Messages dropped by the slow-consumer policy.
+    final LongAdder sessionThrottled = new LongAdder();            // Chat messages refused by a client's rate limit.
+    final LongAdder roomThrottled = new LongAdder();               // Chat messages refused by a room's rate limit.
+    final LatencyHistogram fanout = new LatencyHistogram();        // Read to fan-out.
+    final LatencyHistogram flush = new LatencyHistogram();         // Enqueue to flush, per recipient; counts the messages written.
+    final LatencyHistogram delivery = new LatencyHistogram();      // Read to delivery, per recipient.
+
+    private Totals lastTotals;                                     // Counts at the previous periodic report.
+    private long lastReportAt;                                     // When the previous periodic report was made.
+
+    /**
+     * Creates metrics with every count at zero.
+     */
+    public NodeMetrics() {
+        lastTotals = new Totals();
+        lastReportAt = System.nanoTime();
+    }
+
+    /**
+     * Records that a message queued for a client was written out.
+     * @param queuedAt when it was queued for the client, in System.nanoTime().
+     * @param originAt when it entered the server, in System.nanoTime().
+     * @param now when the write completed.
+     */
+    void flushed(long queuedAt, long originAt, long now) {
+        flush.record(now - queuedAt);
+        delivery.record(now - originAt);
+    }
+
+    /**
+     * Describes everything counted since the server started, one line per topic.
+     * @param host the server, for its current sessions and message log.
+     */
+    public List<String> report(NodeHost host) {
+        Totals totals = new Totals();
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("[Stats] Sessions: %,d connected, %,d parked; accepted %,d, joined %,d, resumed %,d, left %,d, slow %,d.",
+                host.sessions().size(), host.parked() == null ? 0 : host.parked().size(),
+                accepted.sum(), joined.sum(), resumed.sum(), left.sum(), slowDisconnects.sum()));
+        lines.add(String.format("[Stats] Messages: received %,d, published %,d, delivered %,d, flushed %,d, dropped %,d;"
+                        + " throttled %,d by client limits, %,d by room limits.",
+                totals.received, totals.published, totals.delivered, totals.flush.count(), totals.dropped,
+                totals.sessionThrottled, totals.roomThrottled));
+        lines.add(latency("Read to fan-out", totals.fanout));
+        lines.add(latency("Enqueue to flush", totals.flush));
+        lines.add(latency("Read to delivery", totals.delivery));
+        BufferPool buffers = host.buffers();
+        lines.add(String.format("[Stats] Buffers: %,d KiB of direct slabs, %,d KiB lent out, %,d unpooled.",
+                buffers.slabBytes() / 1024, buffers.lentBytes() / 1024, buffers.unpooledBuffers()));
+        MessageLog log = host.log();
+        if (log != null) {
+            lines.add(String.format("[Stats] Log: appended %,d in %,d batches, dropped %,d%s.",
+                    log.appendedRecords(), log.batches(), log.droppedRecords(),
+                    log.failure() == null ? "" : "; stopped by " + log.failure()));
+        }
+        return lines;
+    }
+
+    /**
+     * Describes what happened since the previous call, as rates and percentiles over the interval.
+     * Meant for a single caller such as the server's timer.
+     */
+    synchronized String intervalReport() {
+        Totals totals = new Totals();
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastReportAt) / 1e9;
+        Totals last = lastTotals;
+        String line = String.format("[Stats] Last %.0f s: received %,.0f/s, published %,.0f/s, delivered %,.0f/s, dropped %,d,"
+                        + " throttled %,d; p99 fan-out %s, flush %s, delivery %s.",
+                seconds, (totals.received - last.received) / seconds, (totals.published - last.published) / seconds,
+                (totals.delivered - last.delivered) / seconds, totals.dropped - last.dropped,
+                totals.sessionThrottled - last.sessionThrottled + totals.roomThrottled - last.roomThrottled,
+                millis(totals.fanout.since(last.fanout).percentile(99)), millis(totals.flush.since(last.flush).percentile(99)),
+                millis(totals.delivery.since(last.delivery).percentile(99)));
+        lastTotals = totals;
+        lastReportAt = now;
+        return line;
+    }
+
+    /**
+     * Describes one latency histogram.
+     */
+    private static String latency(String name, LatencyHistogram.Snapshot snapshot) {
+        return String.format("[Stats] %s (%,d): p50 %s, p90 %s, p99 %s, p99.9 %s, max %s.", name, snapshot.count(),
+                millis(snapshot.percentile(50)), millis(snapshot.percentile(90)), millis(snapshot.percentile(99)),
+                millis(snapshot.percentile(99.9)), millis(snapshot.max()));
+    }
+
+    /**
+     * Formats nanoseconds as milliseconds.
+     */
+    private static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * The message counts and histograms at one moment.
+     */
+    private final class Totals {
+
+        final long received = NodeMetrics.this.received.sum();     // Chat messages received.
+        final long published = NodeMetrics.this.published.sum();   // Messages published.
+        final long delivered = NodeMetrics.this.delivered.sum();   // Messages queued for clients.
+        final long dropped = NodeMetrics.this.dropped.sum();       // Messages dropped.
+        final long sessionThrottled = NodeMetrics.this.sessionThrottled.sum(); // Messages refused by client limits.
+        final long roomThrottled = NodeMetrics.this.roomThrottled.sum();       // Messages refused by room limits.
+        final LatencyHistogram.Snapshot fanout = NodeMetrics.this.fanout.snapshot();     // Read to fan-out.
+        final LatencyHistogram.Snapshot flush = NodeMetrics.this.flush.snapshot();       // Enqueue to flush.
+        final LatencyHistogram.Snapshot delivery = NodeMetrics.this.delivery.snapshot(); // Read to delivery.
+    }
+}
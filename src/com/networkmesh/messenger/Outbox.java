@@ -0,0 +1,490 @@
+package com.networkmesh.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbox is the bounded queue of encoded messages waiting to be written to one client.
+ * Any thread may add to it; a single writer (a writer thread or the client's event loop) drains it,
+ * so broadcasting only ever enqueues and never touches the recipient's socket.
+ * The same buffer may sit in many outboxes at once, so writers must never move its position.
+ * When the client falls behind, the configured SlowConsumerPolicy decides what is dropped.
+ * With metrics, the writer reports how many of the messages it took have been written out, and the
+ * outbox records how long each of them waited.
+ */
+class Outbox {
+
+    private static final int INITIAL_SLOTS = 16;                   // Idle clients only pay for a small ring.
+
+    /**
+     * What became of a message offered to an outbox.
+     */
+    enum Offer {
+
+        /** The message was queued for the writer. */
+        QUEUED,
+
+        /** The DROP_NEWEST policy discarded the message; the client stays connected. */
+        DROPPED,
+
+        /** The outbox is closed. */
+        REFUSED,
+
+        /** The DISCONNECT policy just gave up on the client and closed the outbox; later offers are REFUSED. */
+        OVERFLOWED
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();        // Guards the ring; never held during socket I/O.
+    private final Condition notEmpty = lock.newCondition();        // Signalled when a blocking writer has work.
+    private final int capacity;                                    // Maximum number of queued messages.
+    private final SlowConsumerPolicy policy;                       // What to do when a limit is exceeded.
+    private final long maxBytes;                                   // Maximum number of queued bytes.
+    private final long maxLagNanos;                                // Maximum age of the oldest queued message.
+    private final Runnable onReady;                                // Called when the outbox stops being empty, may be null.
+    private final NodeMetrics metrics;                             // Where deliveries and their latencies are counted, may be null.
+    private ByteBuffer[] items = new ByteBuffer[INITIAL_SLOTS];    // Ring of queued messages.
+    private long[] queuedAt = new long[INITIAL_SLOTS];             // System.nanoTime() at which each message was queued.
+    private long[] originAt = new long[INITIAL_SLOTS];             // System.nanoTime() at which each message entered the server.
+    private int head;                                              // Index of the oldest message.
+    private int size;                                              // Number of queued messages.
+    private long bytes;                                            // Number of queued bytes.
+    private boolean closed;                                        // No more messages are accepted once set.
+    private long sent;                                             // Messages handed to the writer.
+    private long dropped;                                          // Messages discarded by the policy.
+    private long coalesced;                                        // Times the backlog was replaced by a notice.
+    private boolean framed;                                        // Notices are encoded as frames rather than lines.
+    private boolean noticeAtHead;                                  // The oldest message is a skipped-messages notice.
+    private long skippedSinceNotice;                               // Messages skipped since the client last got a notice.
+    private long[] takenQueuedAt = new long[INITIAL_SLOTS];        // Queue times of messages taken but not yet written. Writer only.
+    private long[] takenOriginAt = new long[INITIAL_SLOTS];        // Origin times of the same messages. Writer only.
+    private int takenHead;                                         // Index of the oldest taken message. Writer only.
+    private int taken;                                             // Number of taken messages not yet written. Writer only.
+
+    /**
+     * Creates an empty outbox for a client.
+     * @param config the server settings for queue limits and the slow-consumer policy.
+     * @param metrics where deliveries, drops and latencies are counted, or null.
+     * @param onReady called outside the lock whenever a message lands in an empty outbox,
+     *                or null if the writer blocks in {@link #take()}.
+     */
+    Outbox(NodeConfig config, NodeMetrics metrics, Runnable onReady) {
+        this(config.outboxCapacity, config.slowConsumerPolicy, config.maxQueuedBytes, config.maxLagMillis, metrics, onReady);
+    }
+
+    /**
+     * Creates an empty outbox with explicit limits.
+     * @param capacity maximum number of queued messages.
+     * @param policy what to do when a limit is exceeded.
+     * @param maxBytes maximum number of queued bytes.
+     * @param maxLagMillis maximum age of the oldest queued message.
+     * @param metrics see {@link #Outbox(NodeConfig, NodeMetrics, Runnable)}.
+     * @param onReady see {@link #Outbox(NodeConfig, NodeMetrics, Runnable)}.
+     */
+    Outbox(int capacity, SlowConsumerPolicy policy, long maxBytes, long maxLagMillis, NodeMetrics metrics, Runnable onReady) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.maxBytes = maxBytes;
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+        this.metrics = metrics;
+        this.onReady = onReady;
+    }
+
+    /**
+     * Queues a message that originates here for the writer. See {@link #offer(ByteBuffer, long)}.
+     */
+    Offer offer(ByteBuffer buffer) {
+        return offer(buffer, System.nanoTime());
+    }
+
+    /**
+     * Queues a message for the writer, applying the slow-consumer policy if the client is behind.
+     * Safe to call from any thread.
+     * @param buffer the encoded message.
+     * @param origin when the message entered the server, in System.nanoTime().
+     * @return whether the message was queued, dropped by the policy, refused because the outbox is closed,
+     *         or refused because the client must now be disconnected for falling too far behind.
+     */
+    Offer offer(ByteBuffer buffer, long origin) {
+        boolean wasEmpty;
+        lock.lock();
+        try {
+            if (closed) return Offer.REFUSED;
+            long now = System.nanoTime();
+            if (isBehind(buffer.remaining(), now)) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        dropped++;
+                        if (metrics != null) metrics.dropped.increment();
+                        return Offer.DROPPED;
+                    case DISCONNECT:
+                        closed = true;
+                        notEmpty.signalAll();
+                        return Offer.OVERFLOWED;
+                    case DROP_OLDEST:
+                        while (isBehind(buffer.remaining(), now)) {
+                            removeHead();
+                            dropped++;
+                            if (metrics != null) metrics.dropped.increment();
+                        }
+                        break;
+                    case COALESCE:
+                        int skipped = noticeAtHead ? size - 1 : size;  // A notice still waiting is replaced, not counted.
+                        while (size > 0) removeHead();
+                        dropped += skipped;
+                        if (metrics != null) metrics.dropped.add(skipped);
+                        skippedSinceNotice += skipped;
+                        coalesced++;
+                        add(Envelope.system("[System] " + skippedSinceNotice
+                                + " messages were skipped because your connection is slow.").encoded(framed), now, now);
+                        noticeAtHead = true;
+                        break;
+                }
+            }
+            wasEmpty = size == 0;
+            add(buffer, now, origin);
+            if (metrics != null) metrics.delivered.increment();
+            if (wasEmpty) notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (wasEmpty && onReady != null) onReady.run();
+        return Offer.QUEUED;
+    }
+
+    /**
+     * Makes the notices this outbox generates itself use the binary frame protocol.
+     */
+    void useFrames() {
+        lock.lock();
+        try {
+            framed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message without waiting.
+     * @return the message, or null if the outbox is empty.
+     */
+    ByteBuffer poll() {
+        lock.lock();
+        try {
+            return size == 0 ? null : takeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message, waiting until one arrives.
+     * @return the message, or null once the outbox is closed and everything has been taken.
+     */
+    ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (closed) return null;
+                notEmpty.await();
+            }
+            return takeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message, waiting at most until the deadline for one to arrive.
+     * @param deadline System.nanoTime() after which to give up.
+     * @return the message, or null if none arrived in time or the outbox is closed and empty.
+     */
+    ByteBuffer poll(long deadline) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0) {
+                long wait = deadline - System.nanoTime();
+                if (closed || wait <= 0) return null;
+                notEmpty.awaitNanos(wait);
+            }
+            return takeHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writer loop for a blocking channel: writes queued messages until the outbox is closed and drained.
+     * Messages are coalesced: after the first one arrives the writer waits up to maxDelayNanos
+     * for more, and writes the whole batch with a single call unless it fills the batch first.
+     * The batch buffer is borrowed from the pool when the first message of a batch arrives and returned
+     * once the batch is written, so a writer waiting for messages holds no buffer.
+     * @param output the blocking channel to write to.
+     * @param maxDelayNanos how long the first message of a batch may wait for others; 0 or less never waits,
+     *                      but still writes messages that are already queued along with it.
+     * @param pool pool the batch buffer is borrowed from.
+     * @param batchBytes size of a batch; more bytes than this are written without waiting.
+     *                   0 or less writes every message on its own.
+     */
+    void drainTo(WritableByteChannel output, long maxDelayNanos, BufferPool pool, int batchBytes) throws IOException, InterruptedException {
+        ByteBuffer buffer;
+        while ((buffer = take()) != null) {
+            long deadline = System.nanoTime() + maxDelayNanos;
+            int size = batchBytes > 0 ? batchBytes : buffer.remaining();  // Without coalescing, a batch is one message.
+            ByteBuffer batch = pool.acquire(size).limit(size);
+            try {
+                do {
+                    for (int at = buffer.position(); at < buffer.limit(); ) {
+                        if (!batch.hasRemaining()) write(output, batch, size);
+                        int length = Math.min(buffer.limit() - at, batch.remaining());
+                        batch.put(batch.position(), buffer, at, length);  // Absolute: the buffer is shared with other writers.
+                        batch.position(batch.position() + length);
+                        at += length;
+                    }
+                } while (batch.hasRemaining() && (buffer = poll(deadline)) != null);
+                write(output, batch, size);
+            } finally {
+                pool.release(batch);
+            }
+            flushed();
+        }
+    }
+
+    /**
+     * Writes out a batch completely and clears it for the next one.
+     */
+    private static void write(WritableByteChannel output, ByteBuffer batch, int size) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) output.write(batch);
+        batch.clear().limit(size);
+    }
+
+    /**
+     * Tells the outbox that every message taken so far has been written out, so that their latencies
+     * are recorded. Called by the writer only.
+     */
+    void flushed() {
+        flushed(taken);
+    }
+
+    /**
+     * Tells the outbox that the oldest messages taken so far have been written out, so that their latencies
+     * are recorded. Called by the writer only.
+     * @param count number of messages, in the order they were taken.
+     */
+    void flushed(int count) {
+        if (metrics == null || count == 0) return;
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            metrics.flushed(takenQueuedAt[takenHead], takenOriginAt[takenHead], now);
+            takenHead = (takenHead + 1) % takenQueuedAt.length;
+        }
+        taken -= count;
+    }
+
+    /**
+     * Tells how long the writer may still wait for more messages before writing what is queued.
+     * @param maxDelayNanos how long the oldest message may wait.
+     * @param maxBytes number of queued bytes that are written without waiting.
+     * @return the remaining wait in nanoseconds, 0 if the queue should be written now.
+     */
+    long flushDelay(long maxDelayNanos, long maxBytes) {
+        lock.lock();
+        try {
+            if (size == 0 || closed || bytes >= maxBytes) return 0;
+            return Math.max(0, maxDelayNanos - (System.nanoTime() - queuedAt[head]));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting messages. Messages already queued can still be taken.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether the outbox is closed and has nothing left to write.
+     */
+    boolean isDrained() {
+        lock.lock();
+        try {
+            return closed && size == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be written.
+     */
+    int queuedMessages() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written.
+     */
+    long queuedBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how long the oldest queued message has been waiting, in milliseconds.
+     */
+    long lagMillis() {
+        lock.lock();
+        try {
+            return size == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt[head]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages handed to the writer so far.
+     */
+    long sentMessages() {
+        lock.lock();
+        try {
+            return sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages discarded by the slow-consumer policy so far.
+     */
+    long droppedMessages() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many times the backlog was replaced by a notice under the COALESCE policy.
+     */
+    long coalescedRuns() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether adding a message of the given size would exceed a limit.
+     * An empty outbox is never behind. The caller holds the lock.
+     */
+    private boolean isBehind(int incoming, long now) {
+        if (size == 0) return false;
+        return size == capacity
+                || bytes + incoming > maxBytes
+                || now - queuedAt[head] > maxLagNanos;
+    }
+
+    /**
+     * Appends a message to the ring. The caller holds the lock and has made room for it.
+     */
+    private void add(ByteBuffer buffer, long now, long origin) {
+        if (size == items.length) grow();
+        int tail = (head + size) % items.length;
+        items[tail] = buffer;
+        queuedAt[tail] = now;
+        originAt[tail] = origin;
+        bytes += buffer.remaining();
+        size++;
+    }
+
+    /**
+     * Removes the oldest message for the writer. The caller holds the lock and has checked the outbox is not empty.
+     */
+    private ByteBuffer takeHead() {
+        if (noticeAtHead) {
+            noticeAtHead = false;
+            skippedSinceNotice = 0;
+        }
+        sent++;
+        if (metrics != null) rememberTaken(queuedAt[head], originAt[head]);
+        return removeHead();
+    }
+
+    /**
+     * Keeps the times of a message handed to the writer until the writer reports it written.
+     * The caller is the writer.
+     */
+    private void rememberTaken(long queued, long origin) {
+        if (taken == takenQueuedAt.length) {
+            long[] largerQueuedAt = new long[taken * 2];
+            long[] largerOriginAt = new long[taken * 2];
+            for (int i = 0; i < taken; i++) {
+                largerQueuedAt[i] = takenQueuedAt[(takenHead + i) % taken];
+                largerOriginAt[i] = takenOriginAt[(takenHead + i) % taken];
+            }
+            takenQueuedAt = largerQueuedAt;
+            takenOriginAt = largerOriginAt;
+            takenHead = 0;
+        }
+        int tail = (takenHead + taken) % takenQueuedAt.length;
+        takenQueuedAt[tail] = queued;
+        takenOriginAt[tail] = origin;
+        taken++;
+    }
+
+    /**
+     * Removes the oldest message. The caller holds the lock and has checked the outbox is not empty.
+     */
+    private ByteBuffer removeHead() {
+        ByteBuffer buffer = items[head];
+        items[head] = null;
+        head = (head + 1) % items.length;
+        bytes -= buffer.remaining();
+        size--;
+        return buffer;
+    }
+
+    /**
+     * Grows the ring, doubling it up to the capacity. The caller holds the lock.
+     */
+    private void grow() {
+        int length = Math.max(Math.min(items.length * 2, capacity), items.length + 1);
+        ByteBuffer[] largerItems = new ByteBuffer[length];
+        long[] largerQueuedAt = new long[length];
+        long[] largerOriginAt = new long[length];
+        for (int i = 0; i < size; i++) {
+            largerItems[i] = items[(head + i) % items.length];
+            largerQueuedAt[i] = queuedAt[(head + i) % items.length];
+            largerOriginAt[i] = originAt[(head + i) % items.length];
+        }
+        items = largerItems;
+        queuedAt = largerQueuedAt;
+        originAt = largerOriginAt;
+        head = 0;
+    }
+}
@@ -0,0 +1,138 @@
+package com.networkmesh.messenger;
+
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ParkedSessions keeps the sessions of binary clients whose connection dropped, so that a client
+ * that reconnects soon enough gets its session back instead of joining again.
+ * Each such client receives a random token when it joins. When its connection drops without a
+ * goodbye, its session is parked under that token: it leaves its room quietly, keeps its session ID,
+ * and the others are told it left only if it does not come back within the grace period.
+ * A client resumes by presenting the token, its username and the last sequence number it received;
+ * the host then replays what it missed from its retention ring. A client may reconnect before the host
+ * notices that its old connection is gone; the old connection is then closed and its session parked
+ * and claimed at once, so the client still gets its session back.
+ */
+public class ParkedSessions {
+
+    private final NodeHost host;                                   // Server the sessions belong to.
+    private final long graceMillis;                                // How long a session stays parked.
+    private final SecureRandom random = new SecureRandom();        // Source of the tokens, which must not be guessable.
+    private final ConcurrentHashMap<Long, Parked> parked = new ConcurrentHashMap<>(); // Parked sessions by token.
+    private final ConcurrentHashMap<Long, NodeHandler> live = new ConcurrentHashMap<>(); // Connected sessions by token.
+    private final Set<Integer> sessionIDs = ConcurrentHashMap.newKeySet(); // Session IDs of the parked sessions.
+
+    /**
+     * Creates an empty set of parked sessions.
+     * @param host the server, used to schedule expiry and to announce that a session is gone.
+     * @param graceMillis how long a session waits for its client to come back.
+     */
+    ParkedSessions(NodeHost host, long graceMillis) {
+        this.host = host;
+        this.graceMillis = graceMillis;
+    }
+
+    /**
+     * Returns a new token for a connected session that can be resumed. Never 0, which means "no token".
+     * @param node the client's handler, with its username and session ID set.
+     */
+    long newToken(NodeHandler node) {
+        long token;
+        do {
+            token = random.nextLong();
+        } while (token == 0 || live.putIfAbsent(token, node) != null);
+        return token;
+    }
+
+    /**
+     * Forgets the token of a session whose connection is closing, before it is parked or ended.
+     * @param node the client's handler.
+     */
+    void closing(NodeHandler node) {
+        if (node.getToken() != 0) live.remove(node.getToken(), node);
+    }
+
+    /**
+     * Parks a session whose connection dropped. The client must already have left its room and the
+     * session registry; it stays present in the mesh until the session expires.
+     * @param node the client's handler, with its token, username, session ID and room set.
+     */
+    void park(NodeHandler node) {
+        Parked session = new Parked(node.getUsername(), node.getSessionID(), node.getRoom().getName());
+        sessionIDs.add(session.sessionID);
+        parked.put(node.getToken(), session);
+        session.expiry = host.timer().schedule(() -> expire(node.getToken(), session), graceMillis, TimeUnit.MILLISECONDS);
+        System.out.println("[Server] Keeping the session of " + session.username + " (ID: " + session.sessionID + ") for "
+                + graceMillis + " ms.");
+    }
+
+    /**
+     * Takes back a parked session for a client that reconnected. If the session is still connected,
+     * its old connection is taken to be half-open: it is closed and the session parked first.
+     * @param token the token the client presented.
+     * @param username the username the client presented; it must match the session's.
+     * @return the session, or null if there is no such session or it has expired.
+     */
+    Parked claim(long token, String username) {
+        NodeHandler stale = live.get(token);
+        if (stale != null && stale.getUsername().equals(username)) stale.supersede();
+        Parked session = parked.get(token);
+        if (session == null || !session.username.equals(username) || !parked.remove(token, session)) return null;
+        if (session.expiry != null) session.expiry.cancel(false);  // Otherwise it finds the session gone when it runs.
+        sessionIDs.remove(session.sessionID);                      // The resumed client registers it again.
+        return session;
+    }
+
+    /**
+     * Tells whether a parked session holds a session ID, so that it is not handed to anyone else.
+     */
+    boolean holds(int sessionID) {
+        return sessionIDs.contains(sessionID);
+    }
+
+    /**
+     * Returns the number of sessions currently parked.
+     */
+    public int size() {
+        return parked.size();
+    }
+
+    /**
+     * Ends a session whose client did not come back, announcing it like any other departure.
+     * Runs on the server's timer thread.
+     */
+    private void expire(long token, Parked session) {
+        if (!parked.remove(token, session)) return;                // Claimed in the meantime.
+        sessionIDs.remove(session.sessionID);
+        host.metrics().left.increment();
+        host.mesh().sessionChanged(session.username, session.sessionID, false);
+        Envelope left = Envelope.system("[System] " + session.username + " left the chat.");
+        Room room = host.rooms().get(session.room);
+        if (room != null) host.publish(room, left, null);
+        host.mesh().forward(session.room, left);
+    }
+
+    /**
+     * A session waiting for its client to reconnect.
+     */
+    static final class Parked {
+
+        final String username;                                     // Username of the client.
+        final int sessionID;                                       // Session ID the client keeps.
+        final String room;                                         // Name of the room the client was in.
+        volatile ScheduledFuture<?> expiry;                        // Ends the session once the grace period is over.
+
+        /**
+         * Creates a parked session.
+         */
+        Parked(String username, int sessionID, String room) {
+            this.username = username;
+            this.sessionID = sessionID;
+            this.room = room;
+        }
+    }
+}
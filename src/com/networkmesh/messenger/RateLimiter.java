@@ -0,0 +1,114 @@
+package com.networkmesh.messenger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateLimiter holds a sender to a number of messages and a number of bytes per second, each with a burst
+ * allowance. Both limits are token buckets kept in the GCRA form: instead of a token count refilled by a timer,
+ * a bucket keeps the time at which it would be full again, in a single AtomicLong. Taking tokens moves that time
+ * forward with one compare-and-set, so checking a message never locks or allocates and is safe from any thread.
+ */
+final class RateLimiter {
+
+    private final Bucket messages;                                 // Messages per second, null for no limit.
+    private final Bucket bytes;                                    // Bytes per second, null for no limit.
+
+    /**
+     * Creates a limiter whose buckets start full.
+     * @param messagesPerSecond messages allowed per second, 0 for no limit.
+     * @param bytesPerSecond bytes allowed per second, 0 for no limit.
+     * @param burstMillis how many milliseconds' worth of each rate may be sent at once.
+     */
+    RateLimiter(long messagesPerSecond, long bytesPerSecond, long burstMillis) {
+        this.messages = messagesPerSecond > 0 ? new Bucket(messagesPerSecond, burstMillis) : null;
+        this.bytes = bytesPerSecond > 0 ? new Bucket(bytesPerSecond, burstMillis) : null;
+    }
+
+    /**
+     * Creates the limiter of one client's chat, or returns null if clients are not limited.
+     */
+    static RateLimiter forSession(NodeConfig config) {
+        if (config.sessionMessageRate <= 0 && config.sessionByteRate <= 0) return null;
+        return new RateLimiter(config.sessionMessageRate, config.sessionByteRate, config.limitBurstMillis);
+    }
+
+    /**
+     * Creates the limiter of the chat sent to one room, or returns null if rooms are not limited.
+     */
+    static RateLimiter forRoom(NodeConfig config) {
+        if (config.roomMessageRate <= 0 && config.roomByteRate <= 0) return null;
+        return new RateLimiter(config.roomMessageRate, config.roomByteRate, config.limitBurstMillis);
+    }
+
+    /**
+     * Takes the tokens for one message if both buckets have enough; otherwise takes nothing.
+     * @param size size of the message in bytes.
+     * @param now the current System.nanoTime().
+     * @return true if the message may be sent.
+     */
+    boolean tryAcquire(int size, long now) {
+        if (messages != null && !messages.tryTake(1, now)) return false;
+        if (bytes != null && !bytes.tryTake(size, now)) {
+            if (messages != null) messages.giveBack(1);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the tokens of a message that was let through here but stopped by another limit.
+     * @param size size of the message in bytes.
+     */
+    void release(int size) {
+        if (messages != null) messages.giveBack(1);
+        if (bytes != null) bytes.giveBack(size);
+    }
+
+    /**
+     * One token bucket. {@code full} is the time at which the bucket would hold its whole burst again;
+     * every token pushes it forward by one interval, and a take that would push it further than the burst
+     * window beyond now is refused. A single message larger than the burst costs the whole burst,
+     * so that it can still pass when the bucket is full.
+     */
+    private static final class Bucket {
+
+        private final long interval;                               // Nanoseconds that earn one token.
+        private final long window;                                 // Nanoseconds that earn the whole burst.
+        private final AtomicLong full;                             // System.nanoTime() at which the bucket is full again.
+
+        /**
+         * Creates a full bucket.
+         * @param perSecond tokens earned per second.
+         * @param burstMillis milliseconds' worth of tokens the bucket holds, at least one token.
+         */
+        Bucket(long perSecond, long burstMillis) {
+            this.interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) / perSecond);
+            this.window = Math.max(interval, TimeUnit.MILLISECONDS.toNanos(burstMillis));
+            this.full = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Takes tokens if the bucket has them.
+         * @param tokens number of tokens.
+         * @param now the current System.nanoTime().
+         * @return false if the bucket holds too few tokens; nothing is taken then.
+         */
+        boolean tryTake(long tokens, long now) {
+            long cost = Math.min(window, tokens * interval);
+            while (true) {
+                long current = full.get();
+                long next = (current - now > 0 ? current : now) + cost;
+                if (next - now > window) return false;
+                if (full.compareAndSet(current, next)) return true;
+            }
+        }
+
+        /**
+         * Puts back tokens taken by {@link #tryTake}.
+         */
+        void giveBack(long tokens) {
+            full.addAndGet(-Math.min(window, tokens * interval));
+        }
+    }
+}
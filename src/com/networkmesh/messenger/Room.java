@@ -0,0 +1,79 @@
+package com.networkmesh.messenger;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Room is a chat channel with its own set of subscribers.
+ * A message sent to a room fans out to its members only, so the cost of a message depends on
+ * the size of its audience rather than on the number of clients connected to the host.
+ */
+public class Room {
+
+    private final String name;                                            // Name of the room, without the leading '#'.
+    private final Set<NodeHandler> members = ConcurrentHashMap.newKeySet(); // Clients currently in the room.
+    private final HistoryRing history;                                    // Recent chat messages, or null if disabled.
+    private final RateLimiter limiter;                                    // Limits the chat sent to the room, or null for none.
+
+    /**
+     * Creates an empty room. Rooms are created and removed through RoomRegistry.
+     * @param name the name of the room.
+     * @param config the host's settings, for the history depth and the room's rate limits.
+     */
+    Room(String name, NodeConfig config) {
+        this.name = name;
+        this.history = config.historyDepth > 0 ? new HistoryRing(config.historyDepth) : null;
+        this.limiter = RateLimiter.forRoom(config);
+    }
+
+    /**
+     * Returns the name of the room.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns a live, weakly consistent view of the room's members, for broadcasting.
+     */
+    public Collection<NodeHandler> members() {
+        return members;
+    }
+
+    /**
+     * Returns the recent chat messages of the room, or null if history is disabled.
+     */
+    HistoryRing history() {
+        return history;
+    }
+
+    /**
+     * Returns the limiter of the chat sent to the room by this host's clients, or null if it is not limited.
+     */
+    RateLimiter limiter() {
+        return limiter;
+    }
+
+    /**
+     * Returns the number of members.
+     */
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Adds a member. Called by RoomRegistry while it holds the room's entry.
+     */
+    void add(NodeHandler node) {
+        members.add(node);
+    }
+
+    /**
+     * Removes a member. Called by RoomRegistry while it holds the room's entry.
+     * @return true if the client was a member.
+     */
+    boolean remove(NodeHandler node) {
+        return members.remove(node);
+    }
+}
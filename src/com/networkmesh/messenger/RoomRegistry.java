@@ -0,0 +1,106 @@
+package com.networkmesh.messenger;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RoomRegistry keeps the rooms of a NodeHost. A room exists while it has members: it is created
+ * by the first client to join it and dropped when the last one leaves. Joining and leaving are
+ * atomic per room, so a client never ends up in a room that has just been dropped.
+ * The mesh is told about rooms opening and closing after the change, outside the map's remapping functions.
+ */
+public class RoomRegistry {
+
+    public static final String LOBBY = "lobby";                               // Room every client starts in.
+    private static final int MAX_NAME_LENGTH = 32;                            // Longest accepted room name.
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>(); // Rooms by name.
+    private final MeshRouter mesh;                                            // Told when a room opens or closes here.
+    private final NodeConfig config;                                          // Settings every new room is created with.
+    private final Set<String> announced = new HashSet<>();                    // Rooms the mesh was last told are open; guarded by itself.
+
+    /**
+     * Creates an empty registry.
+     * @param mesh the router of the host, told when a room gets its first member or loses its last one.
+     * @param config the host's settings, for each room's history depth and rate limits.
+     */
+    public RoomRegistry(MeshRouter mesh, NodeConfig config) {
+        this.mesh = mesh;
+        this.config = config;
+    }
+
+    /**
+     * Adds a client to a room, creating the room if needed.
+     * @param name the name of the room.
+     * @param node the client's handler.
+     * @return the room the client is now in.
+     */
+    public Room join(String name, NodeHandler node) {
+        boolean[] opened = new boolean[1];
+        Room joined = rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(key, config);
+                opened[0] = true;
+            }
+            room.add(node);
+            return room;
+        });
+        if (opened[0]) announce(name);
+        return joined;
+    }
+
+    /**
+     * Removes a client from a room, dropping the room if it becomes empty.
+     * @param room the room to leave.
+     * @param node the client's handler.
+     */
+    public void leave(Room room, NodeHandler node) {
+        Room left = rooms.computeIfPresent(room.getName(), (key, current) -> {
+            current.remove(node);
+            return current.size() > 0 ? current : null;
+        });
+        if (left == null) announce(room.getName());
+    }
+
+    /**
+     * Tells the mesh whether a room is open here, after it was created or dropped. What is announced is the
+     * room's state when the lock is taken, and only if it differs from the last announcement, so a room that
+     * opens and closes on several threads at once is announced in order and ends up in the right state.
+     */
+    private void announce(String name) {
+        synchronized (announced) {
+            boolean open = rooms.containsKey(name);
+            if (open ? !announced.add(name) : !announced.remove(name)) return;
+            mesh.roomChanged(name, open);
+        }
+    }
+
+    /**
+     * Finds a room by name.
+     * @return the room, or null if nobody is in it.
+     */
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Returns a live, weakly consistent view of the rooms that currently have members.
+     */
+    public Collection<Room> rooms() {
+        return rooms.values();
+    }
+
+    /**
+     * Tells whether a room name is acceptable: 1 to 32 letters, digits, '-' or '_'.
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,126 @@
+package com.networkmesh.messenger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+/**
+ * SessionIdAllocator hands out session IDs without locks.
+ * Each ID carries the node ID of the NodeHost that issued it in its high bits, so IDs stay unique
+ * across every host of a mesh as long as each host is started with its own node ID.
+ * Threads that allocate many IDs, such as event loops, can reserve a Block of IDs at a time and then
+ * allocate from it without touching the shared counter at all.
+ * The per-node counter wraps after 2^23 sessions. From then on an ID is only handed out again once
+ * nothing holds it any more, which the allocator asks its owner about; IDs that are still held are skipped.
+ */
+public class SessionIdAllocator {
+
+    static final int NODE_BITS = 8;                                 // Bits reserved for the node ID.
+    static final int COUNTER_BITS = 31 - NODE_BITS;                 // Bits left for the per-node counter.
+    static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;            // Highest usable node ID.
+    private static final int COUNTER_MASK = (1 << COUNTER_BITS) - 1;
+    private static final int FIRST_ID = 1000;                       // First counter value handed out.
+    private static final int BLOCK_SIZE = 64;                       // IDs reserved by a Block at a time.
+
+    private final int nodeBits;                                     // Node ID, already shifted into place.
+    private final IntPredicate inUse;                               // Tells whether an ID is still held by a session.
+    private final AtomicInteger counter = new AtomicInteger(FIRST_ID); // Next counter value to hand out.
+    private volatile boolean wrapped;                               // True once the counter has gone past COUNTER_MASK.
+
+    /**
+     * Creates an allocator for the given node whose IDs are never held for longer than it takes the counter to wrap.
+     * @param nodeId the ID of this host in the mesh, between 0 and {@link #MAX_NODE_ID}.
+     */
+    public SessionIdAllocator(int nodeId) {
+        this(nodeId, sessionID -> false);
+    }
+
+    /**
+     * Creates an allocator for the given node.
+     * @param nodeId the ID of this host in the mesh, between 0 and {@link #MAX_NODE_ID}.
+     * @param inUse tells whether a session ID is still held; only asked once the counter has wrapped. Must be thread-safe.
+     */
+    public SessionIdAllocator(int nodeId, IntPredicate inUse) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+        }
+        this.nodeBits = nodeId << COUNTER_BITS;
+        this.inUse = inUse;
+    }
+
+    /**
+     * Allocates a single session ID. Safe to call from any thread.
+     * @throws IllegalStateException if every ID of this node is in use.
+     */
+    public int next() {
+        for (int skipped = 0; ; skipped++) {
+            int count = counter.getAndIncrement();
+            if (usable(count)) return compose(count);
+            if (skipped > COUNTER_MASK) throw exhausted();
+        }
+    }
+
+    /**
+     * Creates a block that allocates IDs from ranges reserved in bulk.
+     * The block itself is not thread-safe and must be used by a single thread.
+     */
+    public Block newBlock() {
+        return new Block();
+    }
+
+    /**
+     * Returns the ID of the node that issued a session ID.
+     */
+    public static int nodeOf(int sessionID) {
+        return sessionID >>> COUNTER_BITS;
+    }
+
+    /**
+     * Tells whether the ID of a counter value may be handed out. On the first pass of the counter every
+     * value may; after it has wrapped, the values below FIRST_ID are skipped and so are IDs still in use.
+     */
+    private boolean usable(int count) {
+        if (count >= 0 && count <= COUNTER_MASK && !wrapped) return true;
+        if (!wrapped) wrapped = true;                              // Written once; later allocations only read it.
+        return (count & COUNTER_MASK) >= FIRST_ID && !inUse.test(compose(count));
+    }
+
+    /**
+     * Combines the node ID with a counter value, keeping only the low bits of the counter.
+     */
+    private int compose(int count) {
+        return nodeBits | (count & COUNTER_MASK);
+    }
+
+    /**
+     * Creates the exception thrown when a whole turn of the counter found no free ID.
+     */
+    private IllegalStateException exhausted() {
+        return new IllegalStateException("Every session ID of node " + (nodeBits >>> COUNTER_BITS) + " is in use");
+    }
+
+    /**
+     * A range of session IDs reserved for one thread. Allocating from it only touches the
+     * shared counter once every {@link #BLOCK_SIZE} IDs, which keeps acceptors from contending on it.
+     */
+    public class Block {
+
+        private int next;                                           // Next counter value in the reserved range.
+        private int end;                                            // End of the reserved range, exclusive.
+
+        /**
+         * Allocates a session ID from this block, reserving a new range when it runs out.
+         * @throws IllegalStateException if every ID of this node is in use.
+         */
+        public int next() {
+            for (int skipped = 0; ; skipped++) {
+                if (next == end) {
+                    next = counter.getAndAdd(BLOCK_SIZE);
+                    end = next + BLOCK_SIZE;
+                }
+                int count = next++;
+                if (usable(count)) return compose(count);
+                if (skipped > COUNTER_MASK) throw exhausted();
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.networkmesh.messenger;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SessionRegistry keeps track of the clients connected to a NodeHost.
+ * Clients are indexed by session ID and by username, so joining, leaving and lookups are O(1)
+ * regardless of how many clients are connected. Several clients may use the same username; each of them
+ * stays indexed, and a lookup by name finds the one that has been connected longest. Iterating over the sessions is weakly consistent:
+ * it never blocks joins or leaves and never copies the registry.
+ */
+public class SessionRegistry {
+
+    private final ConcurrentHashMap<Integer, NodeHandler> bySession = new ConcurrentHashMap<>(); // Clients by session ID.
+    private final ConcurrentHashMap<String, NodeHandler[]> byName = new ConcurrentHashMap<>();   // Clients using each username, oldest first.
+
+    /**
+     * Adds a client that has completed its handshake.
+     * @param node the client's handler, with its username and session ID set.
+     */
+    public void add(NodeHandler node) {
+        bySession.put(node.getSessionID(), node);
+        byName.merge(node.getUsername(), new NodeHandler[] {node}, SessionRegistry::append);
+    }
+
+    /**
+     * Removes a client.
+     * @param node the client's handler.
+     * @return true if the client was registered, false if it had already been removed.
+     */
+    public boolean remove(NodeHandler node) {
+        if (!bySession.remove(node.getSessionID(), node)) return false;
+        byName.computeIfPresent(node.getUsername(), (name, held) -> without(held, node));
+        return true;
+    }
+
+    /**
+     * Finds a client by session ID.
+     * @return the client's handler, or null if no such session is connected.
+     */
+    public NodeHandler get(int sessionID) {
+        return bySession.get(sessionID);
+    }
+
+    /**
+     * Finds a client by username.
+     * @return the handler of the longest-connected client using that name, or null if nobody is.
+     */
+    public NodeHandler get(String username) {
+        NodeHandler[] held = byName.get(username);
+        return held == null ? null : held[0];
+    }
+
+    /**
+     * Returns a live, weakly consistent view of every connected client, for broadcasting.
+     * Clients that join or leave while it is being iterated may or may not be seen.
+     */
+    public Collection<NodeHandler> sessions() {
+        return bySession.values();
+    }
+
+    /**
+     * Returns the number of connected clients.
+     */
+    public int size() {
+        return bySession.size();
+    }
+
+    /**
+     * Returns the clients of a username with some more appended. Arrays are never changed once indexed.
+     */
+    private static NodeHandler[] append(NodeHandler[] held, NodeHandler[] added) {
+        NodeHandler[] all = Arrays.copyOf(held, held.length + added.length);
+        System.arraycopy(added, 0, all, held.length, added.length);
+        return all;
+    }
+
+    /**
+     * Returns the clients of a username without one of them, or null if none is left.
+     */
+    private static NodeHandler[] without(NodeHandler[] held, NodeHandler node) {
+        NodeHandler[] rest = new NodeHandler[held.length];
+        int kept = 0;
+        for (NodeHandler other : held) {
+            if (other != node) rest[kept++] = other;
+        }
+        if (kept == held.length) return held;
+        return kept == 0 ? null : Arrays.copyOf(rest, kept);
+    }
+}
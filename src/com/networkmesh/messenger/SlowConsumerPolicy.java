@@ -0,0 +1,20 @@
+package com.networkmesh.messenger;
+
+/**
+ * SlowConsumerPolicy decides what happens when a client reads slower than the chat produces,
+ * i.e. when its outbox is full, holds too many bytes, or its oldest message has waited too long.
+ */
+public enum SlowConsumerPolicy {
+
+    /** Drop the oldest queued messages to make room for the new one. */
+    DROP_OLDEST,
+
+    /** Drop the new message and keep what is already queued. */
+    DROP_NEWEST,
+
+    /** Disconnect the client. */
+    DISCONNECT,
+
+    /** Replace everything queued with a single notice of how many messages were skipped, then queue the new one. */
+    COALESCE
+}